@@ -0,0 +1,687 @@
+/**
+ * BondFeed.java
+ *
+ * This program reads a bond universe from a CSV or fixed-width binary file
+ * through a memory-mapped FileChannel and feeds it to Investment's greedy
+ * algorithm without ever building a Collection of every Bond in the file.
+ *
+ * CSV format: one bond per line as "name,shares,cost,yield" (e.g.
+ * "ACME,50,10,0.06"). Blank lines, lines starting with '#' and a header line
+ * whose first field is "name" are skipped.
+ *
+ * Binary format: fixed-width big-endian records of RECORD_SIZE bytes; an 8 byte
+ * ASCII name padded with spaces or zeros, followed by the float shares, cost
+ * and yield of the bond.
+ */
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This is a wrapper class for the file formats, the parallel chunk parser and
+ * the sequential reader of a bond feed.
+ */
+public class BondFeed
+{
+	/**
+	 * The layouts a bond feed file can have.
+	 */
+	enum Format
+	{
+		CSV, BINARY
+	}
+
+	/** length of the name field of a binary record */
+	static final int NAME_SIZE = 8;
+
+	/** length of a binary record: name, shares, cost and yield */
+	static final int RECORD_SIZE = NAME_SIZE + 3 * Float.BYTES;
+
+	/** number of bytes parsed by each parallel sub-task */
+	static final int CHUNK_SIZE = 1 << 25;
+
+	/** number of bytes mapped at a time by the sequential reader */
+	static final int WINDOW_SIZE = 1 << 25;
+
+	/**
+	 * Holds the fields of the most recently parsed line or record. The name is
+	 * left in the mapped buffer and only decoded for bonds that are bought.
+	 */
+	static final class Row
+	{
+		int nameAt, nameLength;
+		float shares, cost, yield;
+		/** whether the last line held no bond, e.g. a blank line */
+		boolean skipped;
+	}
+
+	/**
+	 * Parses the CSV line starting at pos in buf into row.
+	 *
+	 * @param buf   - ByteBuffer - mapped region of the file
+	 * @param pos   - int - index of the first byte of the line
+	 * @param limit - int - index beyond the last byte that may be read
+	 * @param atEof - boolean - true if limit is also the end of the file
+	 * @param row   - Row - receives the fields of the line
+	 * @return index of the start of the next line, or -1 if the line does not end
+	 *         before limit. row.skipped tells whether the line held a bond.
+	 */
+	static int parseCsvLine(ByteBuffer buf, int pos, int limit, boolean atEof, Row row)
+	{
+		int end = pos;
+		while (end < limit && buf.get(end) != '\n')
+		{
+			end++;
+		}
+		if (end == limit && !atEof)
+		{
+			return -1;
+		}
+		int next = Math.min(end + 1, limit);
+		row.skipped = true;
+
+		// drop a windows line ending
+		if (end > pos && buf.get(end - 1) == '\r')
+		{
+			end--;
+		}
+		if (end == pos || buf.get(pos) == '#')
+		{
+			return next;
+		}
+
+		int comma = indexOf(buf, ',', pos, end);
+		if (comma - pos == 4 && buf.get(pos) == 'n' && buf.get(pos + 1) == 'a' && buf.get(pos + 2) == 'm'
+				&& buf.get(pos + 3) == 'e')
+		{
+			return next;
+		}
+		row.skipped = false;
+		row.nameAt = pos;
+		row.nameLength = comma - pos;
+
+		int from = comma + 1;
+		comma = indexOf(buf, ',', from, end);
+		row.shares = parseFloat(buf, from, comma);
+		from = comma + 1;
+		comma = indexOf(buf, ',', from, end);
+		row.cost = parseFloat(buf, from, comma);
+		row.yield = parseFloat(buf, comma + 1, end);
+		return next;
+	}
+
+	/**
+	 * Parses the binary record starting at pos in buf into row.
+	 *
+	 * @param buf - ByteBuffer - mapped region of the file
+	 * @param pos - int - index of the first byte of the record
+	 * @param row - Row - receives the fields of the record
+	 */
+	static void parseRecord(ByteBuffer buf, int pos, Row row)
+	{
+		int length = NAME_SIZE;
+		while (length > 0 && (buf.get(pos + length - 1) == ' ' || buf.get(pos + length - 1) == 0))
+		{
+			length--;
+		}
+		row.nameAt = pos;
+		row.nameLength = length;
+		row.shares = buf.getFloat(pos + NAME_SIZE);
+		row.cost = buf.getFloat(pos + NAME_SIZE + Float.BYTES);
+		row.yield = buf.getFloat(pos + NAME_SIZE + 2 * Float.BYTES);
+	}
+
+	/**
+	 * Finds the first occurrence of a byte in buf between from and end.
+	 *
+	 * @throws IllegalArgumentException if the byte is needed but not there
+	 */
+	private static int indexOf(ByteBuffer buf, char c, int from, int end)
+	{
+		for (int i = from; i < end; i++)
+		{
+			if (buf.get(i) == c)
+			{
+				return i;
+			}
+		}
+		if (c == ',')
+		{
+			throw new IllegalArgumentException("bond line needs 4 fields: " + decode(buf, from, end - from));
+		}
+		return end;
+	}
+
+	/**
+	 * Parses a decimal number in buf between from and end without creating a
+	 * String. Numbers with too many digits or an exponent are handed to
+	 * Float.parseFloat().
+	 *
+	 * @return the value of the number
+	 */
+	static float parseFloat(ByteBuffer buf, int from, int end)
+	{
+		while (from < end && buf.get(from) == ' ')
+		{
+			from++;
+		}
+		while (end > from && buf.get(end - 1) == ' ')
+		{
+			end--;
+		}
+
+		int i = from;
+		boolean negative = false;
+		if (i < end && (buf.get(i) == '-' || buf.get(i) == '+'))
+		{
+			negative = buf.get(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0, scale = 0;
+		boolean point = false;
+		for (; i < end; i++)
+		{
+			byte b = buf.get(i);
+			if (b >= '0' && b <= '9')
+			{
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				if (point)
+				{
+					scale++;
+				}
+			}
+			else if (b == '.' && !point)
+			{
+				point = true;
+			}
+			else
+			{
+				break;
+			}
+		}
+
+		// exact when both the mantissa and the power of ten fit in a double
+		if (i == end && digits > 0 && digits <= 15 && scale < POWERS_OF_TEN.length)
+		{
+			double value = mantissa / POWERS_OF_TEN[scale];
+			return (float) (negative ? -value : value);
+		}
+		return Float.parseFloat(decode(buf, from, end - from));
+	}
+
+	/** powers of ten that are exact in a double */
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/**
+	 * Decodes length bytes of buf starting at pos as a String.
+	 */
+	static String decode(ByteBuffer buf, int pos, int length)
+	{
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+		{
+			bytes[i] = buf.get(pos + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * One region of the file and the columns of the bonds parsed from it.
+	 */
+	static final class Chunk
+	{
+		/** mapped region of the file */
+		MappedByteBuffer buf;
+		/** number of bonds parsed */
+		int count;
+		/** where each name starts in buf and its length */
+		int[] nameAt, nameLength;
+		/** shares, cost and yield of each bond */
+		float[] shares, cost, yield;
+
+		/**
+		 * Creates a chunk of the mapped region, whose columns are allocated when it
+		 * is parsed.
+		 */
+		Chunk(MappedByteBuffer buf)
+		{
+			this.buf = buf;
+		}
+
+		/**
+		 * Allocates the columns for at most capacity bonds.
+		 */
+		void allocate(int capacity)
+		{
+			this.nameAt = new int[capacity];
+			this.nameLength = new int[capacity];
+			this.shares = new float[capacity];
+			this.cost = new float[capacity];
+			this.yield = new float[capacity];
+		}
+
+		/**
+		 * Appends the fields of row to the columns, growing them if needed.
+		 */
+		void add(Row row)
+		{
+			if (count == shares.length)
+			{
+				int capacity = Math.max(16, count * 2);
+				nameAt = Arrays.copyOf(nameAt, capacity);
+				nameLength = Arrays.copyOf(nameLength, capacity);
+				shares = Arrays.copyOf(shares, capacity);
+				cost = Arrays.copyOf(cost, capacity);
+				yield = Arrays.copyOf(yield, capacity);
+			}
+			nameAt[count] = row.nameAt;
+			nameLength[count] = row.nameLength;
+			shares[count] = row.shares;
+			cost[count] = row.cost;
+			yield[count] = row.yield;
+			count++;
+		}
+
+		/**
+		 * Creates the Bond in row i of this chunk.
+		 */
+		Investment.Bond bond(int i)
+		{
+			return new Investment.Bond(decode(buf, nameAt[i], nameLength[i]), shares[i], cost[i], yield[i]);
+		}
+
+		/**
+		 * Counts the lines in the mapped region, including a last line without a
+		 * line feed.
+		 */
+		int lines()
+		{
+			int limit = buf.limit();
+			int lines = 0;
+			for (int pos = 0; pos < limit; pos++)
+			{
+				if (buf.get(pos) == '\n')
+				{
+					lines++;
+				}
+			}
+			return limit > 0 && buf.get(limit - 1) != '\n' ? lines + 1 : lines;
+		}
+
+		/**
+		 * Parses every bond in the mapped region. The columns are sized from the
+		 * number of records or lines, so they are never much larger than needed.
+		 */
+		void parse(Format format)
+		{
+			Row row = new Row();
+			int limit = buf.limit();
+			if (format == Format.BINARY)
+			{
+				allocate(limit / RECORD_SIZE);
+				for (int pos = 0; pos + RECORD_SIZE <= limit; pos += RECORD_SIZE)
+				{
+					parseRecord(buf, pos, row);
+					add(row);
+				}
+				return;
+			}
+			allocate(lines());
+			for (int pos = 0; pos < limit;)
+			{
+				pos = parseCsvLine(buf, pos, limit, true, row);
+				if (!row.skipped)
+				{
+					add(row);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses the chunks in [left, right) as concurrent sub-tasks.
+	 */
+	@SuppressWarnings("serial")
+	static final class ParseTask extends RecursiveAction
+	{
+		final Chunk[] chunks;
+		final int left, right;
+		final Format format;
+
+		ParseTask(Chunk[] chunks, int left, int right, Format format)
+		{
+			this.chunks = chunks;
+			this.left = left;
+			this.right = right;
+			this.format = format;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (right - left == 1)
+			{
+				chunks[left].parse(format);
+			}
+			else
+			{
+				int mid = (left + right) >>> 1;
+				invokeAll(new ParseTask(chunks, left, mid, format), new ParseTask(chunks, mid, right, format));
+			}
+		}
+	}
+
+	/**
+	 * Checks that a binary file holds only whole records.
+	 *
+	 * @throws IllegalArgumentException if the file ends part way into a record
+	 */
+	static void checkSize(long size, Format format)
+	{
+		if (format == Format.BINARY && size % RECORD_SIZE != 0)
+		{
+			throw new IllegalArgumentException(
+					"binary bond feed of " + size + " bytes ends part way into a " + RECORD_SIZE + " byte record");
+		}
+	}
+
+	/**
+	 * Maps the file as chunks of about CHUNK_SIZE bytes, each ending on a line or
+	 * record boundary, and parses them in parallel.
+	 *
+	 * @param file   - Path - bond feed file
+	 * @param format - Format - layout of the file
+	 * @return the parsed chunks
+	 * @throws IllegalArgumentException if a binary file ends part way into a
+	 *                                  record
+	 */
+	static Chunk[] parse(Path file, Format format) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			checkSize(size, format);
+			int chunkSize = format == Format.BINARY ? CHUNK_SIZE - CHUNK_SIZE % RECORD_SIZE : CHUNK_SIZE;
+			int count = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+
+			Chunk[] chunks = new Chunk[count];
+			ByteBuffer probe = ByteBuffer.allocate(1);
+			long start = 0;
+			for (int i = 0; i < count; i++)
+			{
+				long end = Math.min(size, start + chunkSize);
+				// move a CSV boundary forward to just past the end of the line
+				while (format == Format.CSV && end < size)
+				{
+					probe.clear();
+					channel.read(probe, end++);
+					if (probe.get(0) == '\n')
+					{
+						break;
+					}
+				}
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+				chunks[i] = new Chunk(buf);
+				start = end;
+			}
+
+			ForkJoinPool.commonPool().invoke(new ParseTask(chunks, 0, count, format));
+			return chunks;
+		}
+	}
+
+	/**
+	 * Maps a float to an int with the same ordering, so yields can be compared as
+	 * integers.
+	 */
+	static int sortableBits(float value)
+	{
+		int bits = Float.floatToIntBits(value);
+		return bits ^ ((bits >> 31) & 0x7fffffff);
+	}
+
+	/**
+	 * Returns the optimum list of bonds to buy from a feed file in any order. The
+	 * file is parsed in parallel into primitive columns, which are ranked by
+	 * yield, and a Bond is only created for each bond that is considered.
+	 *
+	 * @param total  total amount available to invest
+	 * @param file   bond feed file
+	 * @param format layout of the file
+	 * @return a portfolio of bonds
+	 * @throws IllegalArgumentException if a binary file ends part way into a
+	 *                                  record
+	 */
+	static Collection<Investment.Bond> invest(float total, Path file, Format format) throws IOException
+	{
+		final Chunk[] chunks = parse(file, format);
+		final int[] firstRow = new int[chunks.length];
+		int rows = 0;
+		for (int i = 0; i < chunks.length; i++)
+		{
+			firstRow[i] = rows;
+			rows += chunks[i].count;
+		}
+
+		// highest yield in the high word, row in the low word; an ascending sort
+		// of the complemented yield gives the highest yield first
+		final long[] ranked = new long[rows];
+		for (int i = 0, row = 0; i < chunks.length; i++)
+		{
+			Chunk chunk = chunks[i];
+			for (int j = 0; j < chunk.count; j++, row++)
+			{
+				ranked[row] = ((long) ~sortableBits(chunk.yield[j]) << 32) | row;
+			}
+		}
+		Arrays.parallelSort(ranked);
+
+		Iterator<Investment.Bond> highestYieldFirst = new Iterator<Investment.Bond>()
+		{
+			int next = 0;
+
+			public boolean hasNext()
+			{
+				return next < ranked.length;
+			}
+
+			public Investment.Bond next()
+			{
+				int row = (int) ranked[next++];
+				int i = Arrays.binarySearch(firstRow, row);
+				// rows of empty chunks share a start, so take the last one
+				if (i < 0)
+				{
+					i = -i - 2;
+				}
+				while (i + 1 < firstRow.length && firstRow[i + 1] == row)
+				{
+					i++;
+				}
+				return chunks[i].bond(row - firstRow[i]);
+			}
+		};
+		return Investment.investInOrder(total, highestYieldFirst);
+	}
+
+	/**
+	 * Returns the optimum list of bonds to buy from a feed file that is already
+	 * sorted from highest to lowest yield. The file is read sequentially and
+	 * reading stops as soon as the money runs out.
+	 *
+	 * @param total  total amount available to invest
+	 * @param file   bond feed file sorted by descending yield
+	 * @param format layout of the file
+	 * @return a portfolio of bonds
+	 * @throws IllegalArgumentException if a bond that is read has a higher yield
+	 *                                  than the one before it, or a binary file
+	 *                                  ends part way into a record
+	 */
+	static Collection<Investment.Bond> investSorted(float total, Path file, Format format) throws IOException
+	{
+		try (Reader reader = new Reader(file, format))
+		{
+			return Investment.investInOrder(total, reader);
+		}
+	}
+
+	/**
+	 * Reads the bonds of a feed file one at a time, mapping WINDOW_SIZE bytes of
+	 * the file at a time.
+	 */
+	static final class Reader implements Iterator<Investment.Bond>, Closeable
+	{
+		final FileChannel channel;
+		final Format format;
+		final long size;
+		final Row row = new Row();
+
+		/** mapped window of the file, its offset and the position in it */
+		MappedByteBuffer window;
+		long windowStart;
+		int pos;
+
+		/** whether row holds a bond that has not been returned */
+		boolean ready;
+		/** yield of the last bond returned */
+		float lastYield = Float.POSITIVE_INFINITY;
+
+		/**
+		 * Opens a feed file for reading.
+		 *
+		 * @param file   - Path - bond feed file
+		 * @param format - Format - layout of the file
+		 */
+		Reader(Path file, Format format) throws IOException
+		{
+			this.channel = FileChannel.open(file, StandardOpenOption.READ);
+			this.format = format;
+			this.size = channel.size();
+			try
+			{
+				checkSize(size, format);
+			}
+			catch (IllegalArgumentException e)
+			{
+				channel.close();
+				throw e;
+			}
+			map(0);
+		}
+
+		/**
+		 * Maps the window of the file starting at offset.
+		 */
+		private void map(long offset) throws IOException
+		{
+			int length = (int) Math.min(WINDOW_SIZE, size - offset);
+			if (format == Format.BINARY)
+			{
+				length -= length % RECORD_SIZE;
+			}
+			window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			windowStart = offset;
+			pos = 0;
+		}
+
+		/**
+		 * Parses the next bond into row, mapping the next window when this one is
+		 * used up.
+		 *
+		 * @return false at the end of the file
+		 */
+		private boolean advance() throws IOException
+		{
+			while (true)
+			{
+				int limit = window.limit();
+				// no whole record or line is left after this window
+				boolean atEof = format == Format.BINARY ? size - windowStart - limit < RECORD_SIZE
+						: windowStart + limit == size;
+				if (format == Format.BINARY)
+				{
+					if (pos + RECORD_SIZE <= limit)
+					{
+						parseRecord(window, pos, row);
+						pos += RECORD_SIZE;
+						return true;
+					}
+				}
+				else if (pos < limit)
+				{
+					int next = parseCsvLine(window, pos, limit, atEof, row);
+					if (next >= 0)
+					{
+						pos = next;
+						if (row.skipped)
+						{
+							continue;
+						}
+						return true;
+					}
+					if (pos == 0)
+					{
+						throw new IllegalArgumentException("bond line longer than " + WINDOW_SIZE + " bytes");
+					}
+				}
+				if (atEof)
+				{
+					return false;
+				}
+				map(windowStart + pos);
+			}
+		}
+
+		public boolean hasNext()
+		{
+			if (!ready)
+			{
+				try
+				{
+					ready = advance();
+				}
+				catch (IOException e)
+				{
+					throw new IllegalStateException(e);
+				}
+			}
+			return ready;
+		}
+
+		public Investment.Bond next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			if (row.yield > lastYield)
+			{
+				throw new IllegalArgumentException("bond feed is not sorted by descending yield at "
+						+ decode(window, row.nameAt, row.nameLength));
+			}
+			lastYield = row.yield;
+			ready = false;
+			return new Investment.Bond(decode(window, row.nameAt, row.nameLength), row.shares, row.cost, row.yield);
+		}
+
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+}
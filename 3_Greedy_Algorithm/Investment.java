@@ -10,11 +10,24 @@
  * shares of the highest yielding bond first.
  * 
  */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.FixMethodOrder;
 import org.junit.Test;
@@ -24,6 +37,7 @@ import org.junit.runner.notification.Failure;
 import org.junit.runners.MethodSorters;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 /**
  * This is a wrapper class for the Bond and HighestBondYieldComparator, and the
@@ -130,34 +144,107 @@ public class Investment
 	}
 
 	/**
-	 * Returns the optimum list of bonds to buy from a bond priority queue.
+	 * Returns the optimum list of bonds to buy from a bond priority queue. Very
+	 * large collections are handed to ParallelInvestment instead. Every call is
+	 * recorded in InvestmentMetrics.
 	 * 
 	 * @param total total amount available to invest
 	 * @param bonds collection of investment opportunities
 	 * @return a portfolio of bonds
 	 */
 	static Collection<Bond> invest(float total, Collection<Bond> bonds)
+	{
+		InvestmentMetrics.InvestEvent event = new InvestmentMetrics.InvestEvent();
+		event.begin();
+		long startNanos = System.nanoTime();
+		long startAllocated = InvestmentMetrics.allocatedBytes();
+		event.budget = total;
+		event.universeSize = bonds.size();
+
+		Collection<Bond> investments;
+		if (bonds.size() >= ParallelInvestment.THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1)
+		{
+			investments = ParallelInvestment.invest(total, bonds);
+			event.bondsScanned = total == 0 ? 0 : bonds.size();
+		}
+		else
+		{
+			investments = investFromQueue(total, bonds, event);
+		}
+
+		event.bondsBought = investments.size();
+		InvestmentMetrics.record(event, startNanos, startAllocated);
+		return investments;
+	}
+
+	/**
+	 * Returns the optimum list of bonds to buy from a bond priority queue.
+	 * 
+	 * @param total total amount available to invest
+	 * @param bonds collection of investment opportunities
+	 * @param event receives the bonds scanned and heap operations
+	 * @return a portfolio of bonds
+	 */
+	private static Collection<Bond> investFromQueue(float total, Collection<Bond> bonds,
+			final InvestmentMetrics.InvestEvent event)
 	{
 		// your code here
-		PriorityQueue<Bond> bondsQueue = new PriorityQueue<Bond>(bonds.size(), new HighestBondYieldComparator());
+		final PriorityQueue<Bond> bondsQueue = new PriorityQueue<Bond>(Math.max(1, bonds.size()),
+				new HighestBondYieldComparator());
 
-		// move bonds from PriorityQueue bondsQueue that can be bought to investments
-		ArrayList<Bond> investments = new ArrayList<Bond>();
-		float money = total;
-		if (money == 0)
+		if (total == 0)
 		{
-			return investments;
+			return new ArrayList<Bond>();
 		}
-		
+
 		// add all bonds in Collection<Bond> bonds into bondsQueue
 		for (Bond b : bonds)
 		{
 			bondsQueue.add(b);
 		}
+		event.heapOperations = bonds.size();
 
-		while (!bondsQueue.isEmpty())
+		// bonds are polled from bondsQueue only as they are needed
+		Iterator<Bond> highestYieldFirst = new Iterator<Bond>()
 		{
-			Bond b = bondsQueue.poll();
+			public boolean hasNext()
+			{
+				return !bondsQueue.isEmpty();
+			}
+
+			public Bond next()
+			{
+				event.bondsScanned++;
+				event.heapOperations++;
+				return bondsQueue.poll();
+			}
+		};
+
+		return investInOrder(total, highestYieldFirst);
+	}
+
+	/**
+	 * Returns the optimum list of bonds to buy from bonds that are already ordered
+	 * from highest to lowest yield. Bonds are only pulled from the iterator until
+	 * the money runs out, so a lazy source is never read past that point.
+	 * 
+	 * @param total total amount available to invest
+	 * @param bonds investment opportunities in descending order of yield
+	 * @return a portfolio of bonds
+	 */
+	static Collection<Bond> investInOrder(float total, Iterator<Bond> bonds)
+	{
+		// move bonds that can be bought to investments
+		ArrayList<Bond> investments = new ArrayList<Bond>();
+		float money = total;
+		if (money == 0)
+		{
+			return investments;
+		}
+
+		while (bonds.hasNext())
+		{
+			Bond b = bonds.next();
 			
 			// creates a new bond so original bonds are not modified
 			Bond c = new Bond(b.name,b.shares,b.cost,b.yield);
@@ -188,18 +275,6 @@ public class Investment
 			}
 		}		
 		
-////	Troubleshooting:		
-//	System.out.println("initial money: " + total);
-//	System.out.println("remaining money: " + money);
-//	System.out.println("\nSHARES PURCHASED:");
-//	for (Bond c : investments)
-//	{
-//		System.out.println("name: " + c.name + ", shares: " + c.shares + ", cost: " + c.cost + ", yield: " + c.yield
-//				+ "\ntotalprofit: " + c.totalProfit() + ", totalcost: " + c.totalCost() + "\n");
-//	}
-//
-//	System.out.println("end of this run\n-----\n");
-		
 		return investments;
 	}
 
@@ -361,6 +436,440 @@ public class Investment
 			assertEquals(0f, totalCost(investments), 0f);
 			assertEquals(0f, totalProfit(investments), 0f);
 		}
+
+		/**
+		 * Test purchasing a fractional position from an unsorted CSV bond feed.
+		 */
+		@Test
+		public void test_0070_csvFeed() throws IOException
+		{
+			Path file = Files.createTempFile("bonds", ".csv");
+			try
+			{
+				Files.write(file, "name,shares,cost,yield\nACME,50,10,0.060\r\n\nMERC,20,20,0.095\nCOKE,100,30,0.020"
+						.getBytes(StandardCharsets.UTF_8));
+				Collection<Bond> investments = BondFeed.invest(1000f, file, BondFeed.Format.CSV);
+
+				assertEquals(3, investments.size());
+				assertEquals(1000f, totalCost(investments), 0.001f);
+				assertEquals(70f, totalProfit(investments), 0.001f);
+			}
+			finally
+			{
+				Files.delete(file);
+			}
+		}
+
+		/**
+		 * Test that a sorted binary bond feed is not read past the last bond bought.
+		 */
+		@Test
+		public void test_0080_sortedBinaryFeedStopsEarly() throws IOException
+		{
+			Bond[] bonds = { new Bond("MERC", 20f, 20f, 0.095f), new Bond("ACME", 50f, 10f, 0.060f),
+					new Bond("UNSORTED", 100f, 30f, 0.500f) };
+			ByteBuffer records = ByteBuffer.allocate(bonds.length * BondFeed.RECORD_SIZE);
+			for (Bond bond : bonds)
+			{
+				byte[] name = Arrays.copyOf(bond.name.getBytes(StandardCharsets.US_ASCII), BondFeed.NAME_SIZE);
+				records.put(name).putFloat(bond.shares).putFloat(bond.cost).putFloat(bond.yield);
+			}
+
+			Path file = Files.createTempFile("bonds", ".bin");
+			try
+			{
+				Files.write(file, records.array());
+				Collection<Bond> investments = BondFeed.investSorted(900f, file, BondFeed.Format.BINARY);
+
+				assertEquals(2, investments.size());
+				assertEquals(900f, totalCost(investments), 0.001f);
+				assertEquals(68f, totalProfit(investments), 0.001f);
+			}
+			finally
+			{
+				Files.delete(file);
+			}
+		}
+
+		/**
+		 * Test that a binary bond feed ending part way into a record is rejected.
+		 */
+		@Test
+		public void test_0082_truncatedBinaryFeed() throws IOException
+		{
+			Path file = Files.createTempFile("bonds", ".bin");
+			try
+			{
+				Files.write(file, new byte[2 * BondFeed.RECORD_SIZE + 1]);
+				try
+				{
+					BondFeed.investSorted(900f, file, BondFeed.Format.BINARY);
+					fail("truncated feed was read");
+				}
+				catch (IllegalArgumentException e)
+				{
+				}
+				try
+				{
+					BondFeed.invest(900f, file, BondFeed.Format.BINARY);
+					fail("truncated feed was read");
+				}
+				catch (IllegalArgumentException e)
+				{
+				}
+			}
+			finally
+			{
+				Files.delete(file);
+			}
+		}
+
+		/**
+		 * Test that blank lines are skipped at the start of a sorted CSV bond feed.
+		 */
+		@Test
+		public void test_0084_sortedCsvFeedLeadingBlankLine() throws IOException
+		{
+			Path file = Files.createTempFile("bonds", ".csv");
+			try
+			{
+				Files.write(file, "\n\r\nMERC,20,20,0.095\n\nACME,50,10,0.060\nCOKE,100,30,0.020\n"
+						.getBytes(StandardCharsets.UTF_8));
+				Collection<Bond> investments = BondFeed.investSorted(900f, file, BondFeed.Format.CSV);
+
+				assertEquals(2, investments.size());
+				assertEquals(900f, totalCost(investments), 0.001f);
+				assertEquals(68f, totalProfit(investments), 0.001f);
+			}
+			finally
+			{
+				Files.delete(file);
+			}
+		}
+
+		/**
+		 * Test buying whole shares where the greedy choice is not optimal.
+		 */
+		@Test
+		public void test_0090_wholeShares()
+		{
+			Bond[] bonds = { new Bond("ACME", 1f, 60f, 0.10f), new Bond("MERC", 2f, 50f, 0.09f) };
+			Collection<Collection<Bond>> portfolios = Arrays.asList(LotInvestment.invest(100f, Arrays.asList(bonds), 1),
+					LotInvestment.investBranchAndBound(100f, Arrays.asList(bonds), 1));
+
+			for (Collection<Bond> investments : portfolios)
+			{
+				assertEquals(1, investments.size());
+				for (Bond bond : investments)
+				{
+					assertEquals("MERC", bond.name);
+					assertEquals(2f, bond.shares, 0f);
+				}
+				assertEquals(100f, totalCost(investments), 0f);
+				assertEquals(9f, totalProfit(investments), 0.001f);
+			}
+		}
+
+		/**
+		 * Test buying in lots of 10 shares, where the fractional position is dropped.
+		 */
+		@Test
+		public void test_0100_lotSize()
+		{
+			Bond[] bonds = { new Bond("ACME", 50f, 10f, 0.060f), new Bond("MERC", 20f, 20f, 0.095f),
+					new Bond("COKE", 100f, 30f, 0.020f) };
+			Collection<Collection<Bond>> portfolios = Arrays.asList(
+					LotInvestment.invest(1000f, Arrays.asList(bonds), 10),
+					LotInvestment.investBranchAndBound(1000f, Arrays.asList(bonds), 10));
+
+			for (Collection<Bond> investments : portfolios)
+			{
+				assertEquals(2, investments.size());
+				assertEquals(900f, totalCost(investments), 0f);
+				assertEquals(68f, totalProfit(investments), 0.001f);
+			}
+		}
+
+		/**
+		 * Test buying whole shares with a budget of millions of cents, which is too
+		 * large to record every item the table buys.
+		 */
+		@Test
+		public void test_0105_wholeSharesMillionsOfCents()
+		{
+			Random random = new Random(105);
+			ArrayList<Bond> bonds = new ArrayList<Bond>();
+			for (int i = 0; i < 20; i++)
+			{
+				bonds.add(new Bond("B" + i, 1 + random.nextInt(200), (1 + random.nextInt(9999)) / 100f,
+						random.nextInt(1000) / 10000f));
+			}
+
+			Collection<Bond> investments = LotInvestment.invest(20000f, bonds, 1);
+			Collection<Bond> expected = LotInvestment.investBranchAndBound(20000f, bonds, 1);
+
+			assertEquals(true, totalCost(investments) <= 20000f);
+			assertEquals(totalProfit(expected), totalProfit(investments), 0.01f);
+		}
+
+		/**
+		 * Test prices that are not a whole number of cents, which must not let a
+		 * portfolio cost more than the budget, or branch and bound miss the best
+		 * portfolio.
+		 */
+		@Test
+		public void test_0107_subCentPrices()
+		{
+			// a price in 32nds; 1000 shares cost 99031.25
+			Bond[] bonds = { new Bond("TBND", 1000f, 99.03125f, 0.05f) };
+			Collection<Collection<Bond>> portfolios = Arrays.asList(
+					LotInvestment.invest(99030f, Arrays.asList(bonds), 1),
+					LotInvestment.investBranchAndBound(99030f, Arrays.asList(bonds), 1));
+
+			for (Collection<Bond> investments : portfolios)
+			{
+				assertEquals(1, investments.size());
+				assertEquals(999f, investments.iterator().next().shares, 0f);
+				assertEquals(true, totalCost(investments) <= 99030f);
+			}
+
+			Random random = new Random(107);
+			for (int i = 0; i < 200; i++)
+			{
+				ArrayList<Bond> prices = new ArrayList<Bond>();
+				for (int j = 0; j < 5; j++)
+				{
+					prices.add(new Bond("B" + j, 1 + random.nextInt(4), (1 + random.nextInt(5000)) / 1000f,
+							random.nextInt(100) / 1000f));
+				}
+				float total = (1 + random.nextInt(20000)) / 1000f;
+				Collection<Bond> investments = LotInvestment.invest(total, prices, 1);
+				Collection<Bond> expected = LotInvestment.investBranchAndBound(total, prices, 1);
+
+				assertEquals(true, totalCost(investments) <= total);
+				assertEquals(true, totalCost(expected) <= total);
+				assertEquals(totalProfit(investments), totalProfit(expected), 1e-4f);
+			}
+		}
+
+		/**
+		 * Test that the parallel greedy buys the same bonds as the sequential one.
+		 */
+		@Test
+		public void test_0110_parallelMatchesSequential()
+		{
+			Random random = new Random(110);
+			// just below the threshold so invest() stays sequential
+			ArrayList<Bond> bonds = new ArrayList<Bond>();
+			for (int i = 0; i < ParallelInvestment.THRESHOLD - 1; i++)
+			{
+				bonds.add(new Bond("B" + i, random.nextInt(100), 1 + random.nextInt(50), random.nextFloat() / 10));
+			}
+
+			for (float total : new float[] { 0f, 1000f, 250000f, 1e9f })
+			{
+				Collection<Bond> expected = invest(total, bonds);
+				Collection<Bond> investments = ParallelInvestment.invest(total, bonds);
+
+				// yields are distinct, so the same bonds are bought
+				assertEquals(expected.size(), investments.size());
+				assertEquals(totalCost(expected), totalCost(investments), Math.max(1f, total * 1e-5f));
+				assertEquals(totalProfit(expected), totalProfit(investments), Math.max(0.01f, total * 1e-6f));
+			}
+		}
+
+		/**
+		 * Test that the parallel greedy spends the same as the sequential one when
+		 * many bonds have equal yields, and that it never buys a bond with no shares.
+		 */
+		@Test
+		public void test_0112_parallelEqualYields()
+		{
+			Random random = new Random(112);
+			// 5 yields, and some bonds with no shares
+			ArrayList<Bond> bonds = new ArrayList<Bond>();
+			for (int i = 0; i < ParallelInvestment.THRESHOLD - 1; i++)
+			{
+				bonds.add(new Bond("B" + i, random.nextInt(100), 1 + random.nextInt(50), random.nextInt(5) / 100f));
+			}
+
+			for (float total : new float[] { 1000f, 250000f, 1e9f })
+			{
+				Collection<Bond> expected = invest(total, bonds);
+				Collection<Bond> investments = ParallelInvestment.invest(total, bonds);
+
+				// bonds of equal yield may be swapped, so only the totals must match
+				assertEquals(totalCost(expected), totalCost(investments), Math.max(1f, total * 1e-5f));
+				assertEquals(totalProfit(expected), totalProfit(investments), Math.max(0.01f, total * 1e-6f));
+				for (Bond bond : investments)
+				{
+					assertEquals(true, bond.shares > 0);
+				}
+			}
+		}
+
+		/**
+		 * Test the parallel greedy with one outlier yield, which leaves almost every
+		 * other bond in the bucket where the money runs out.
+		 */
+		@Test
+		public void test_0114_parallelSkewedYields()
+		{
+			Random random = new Random(114);
+			ArrayList<Bond> bonds = new ArrayList<Bond>();
+			for (int i = 0; i < ParallelInvestment.THRESHOLD - 2; i++)
+			{
+				bonds.add(new Bond("B" + i, 1 + random.nextInt(100), 1 + random.nextInt(50), random.nextFloat() / 10));
+			}
+			bonds.add(new Bond("OUTLIER", 10f, 100f, 5f));
+
+			for (float total : new float[] { 500f, 1000f, 250000f, 1e9f })
+			{
+				Collection<Bond> expected = invest(total, bonds);
+				Collection<Bond> investments = ParallelInvestment.invest(total, bonds);
+
+				// yields are distinct, so the same bonds are bought
+				assertEquals(expected.size(), investments.size());
+				assertEquals(totalCost(expected), totalCost(investments), Math.max(1f, total * 1e-5f));
+				assertEquals(totalProfit(expected), totalProfit(investments), Math.max(0.01f, total * 1e-6f));
+			}
+		}
+
+		/**
+		 * Test that a cached portfolio is returned until the universe changes, and
+		 * that callers cannot change it.
+		 */
+		@Test
+		public void test_0120_cachedPortfolio()
+		{
+			Bond[] bonds = { new Bond("ACME", 50f, 10f, 0.060f), new Bond("MERC", 20f, 20f, 0.095f),
+					new Bond("COKE", 100f, 30f, 0.020f) };
+			InvestmentCache cache = new InvestmentCache(1);
+			InvestmentCache.Universe universe = new InvestmentCache.Universe(Arrays.asList(bonds));
+
+			Collection<Bond> investments = cache.invest(1000f, universe);
+			for (Bond bond : investments)
+			{
+				bond.shares = 0;
+			}
+			investments = cache.invest(1000f, universe);
+			assertEquals(1, cache.misses());
+			assertEquals(1, cache.hits());
+			assertEquals(1000f, totalCost(investments), 0.001f);
+			assertEquals(70f, totalProfit(investments), 0.001f);
+			try
+			{
+				investments.clear();
+				fail("portfolio is modifiable");
+			}
+			catch (UnsupportedOperationException e)
+			{
+			}
+
+			// a new version of the universe is invested again
+			universe.put(new Bond("COKE", 10f, 30f, 0.120f));
+			investments = cache.invest(1000f, universe);
+			assertEquals(2, cache.misses());
+			assertEquals(3, investments.size());
+			assertEquals(92f, totalProfit(investments), 0.001f);
+			assertEquals(1, cache.size());
+			assertEquals(1, cache.evictions());
+		}
+
+		/**
+		 * Test that a batch of updates to a universe is one new version.
+		 */
+		@Test
+		public void test_0125_universeBatchUpdate()
+		{
+			Bond[] bonds = { new Bond("ACME", 50f, 10f, 0.060f), new Bond("MERC", 20f, 20f, 0.095f),
+					new Bond("COKE", 100f, 30f, 0.020f) };
+			InvestmentCache cache = new InvestmentCache(4);
+			InvestmentCache.Universe universe = new InvestmentCache.Universe(Arrays.asList(bonds));
+			long version = universe.version();
+
+			// replaces COKE and adds PEPS
+			universe.putAll(Arrays.asList(new Bond("COKE", 10f, 30f, 0.120f), new Bond("PEPS", 10f, 10f, 0.010f)));
+			assertEquals(true, universe.version() > version);
+			assertEquals(4, universe.size());
+			assertEquals(92f, totalProfit(cache.invest(1000f, universe)), 0.001f);
+
+			// removes ACME and ignores a name that is not there
+			version = universe.version();
+			assertEquals(1, universe.removeAll(Arrays.asList("ACME", "NONE")));
+			assertEquals(true, universe.version() > version);
+			assertEquals(3, universe.size());
+			assertEquals(false, universe.remove("ACME"));
+
+			// MERC and COKE cost 700, so 30 of the 100 PEPS shares are bought
+			assertEquals(true, universe.remove("PEPS"));
+			universe.put(new Bond("PEPS", 100f, 10f, 0.010f));
+			Collection<Bond> investments = cache.invest(1000f, universe);
+			assertEquals(3, investments.size());
+			assertEquals(1000f, totalCost(investments), 0.001f);
+			assertEquals(38f + 36f + 3f, totalProfit(investments), 0.001f);
+		}
+
+		/**
+		 * Test that the latency histogram percentiles are within a bucket of the
+		 * exact value.
+		 */
+		@Test
+		public void test_0130_histogram()
+		{
+			InvestmentMetrics.Histogram histogram = new InvestmentMetrics.Histogram();
+			for (long value = 1; value <= 100000; value++)
+			{
+				histogram.record(value);
+			}
+
+			assertEquals(100000, histogram.count());
+			assertEquals(100000, histogram.max());
+			assertEquals(50000, histogram.percentile(0.50), 50000 / 32);
+			assertEquals(99000, histogram.percentile(0.99), 99000 / 32);
+			assertEquals(100000, histogram.percentile(1.0));
+			for (long value = 0; value < 64; value++)
+			{
+				assertEquals(value, InvestmentMetrics.Histogram.highestValue(InvestmentMetrics.Histogram.bucket(value)));
+			}
+		}
+
+		/**
+		 * Test that each invest() call is counted and emits a flight recorder event.
+		 */
+		@Test
+		public void test_0140_investMetrics() throws IOException
+		{
+			Bond[] bonds = { new Bond("ACME", 50f, 10f, 0.060f), new Bond("MERC", 20f, 20f, 0.095f),
+					new Bond("COKE", 100f, 30f, 0.020f) };
+			InvestmentMetrics.reset();
+
+			Path file = Files.createTempFile("invest", ".jfr");
+			try (Recording recording = new Recording())
+			{
+				recording.enable(InvestmentMetrics.InvestEvent.class);
+				recording.start();
+				invest(900f, Arrays.asList(bonds));
+				invest(0f, Arrays.asList(bonds));
+				recording.stop();
+				recording.dump(file);
+
+				// 3 adds and 2 polls, then nothing for 0 dollars
+				assertEquals(2, InvestmentMetrics.CALLS.sum());
+				assertEquals(2, InvestmentMetrics.LATENCY_NANOS.count());
+				assertEquals(2, InvestmentMetrics.BONDS_SCANNED.sum());
+				assertEquals(2, InvestmentMetrics.BONDS_BOUGHT.sum());
+				assertEquals(5, InvestmentMetrics.HEAP_OPERATIONS.sum());
+
+				List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+				assertEquals(2, events.size());
+				assertEquals(3, events.get(0).getInt("universeSize"));
+			}
+			finally
+			{
+				Files.delete(file);
+			}
+		}
 	}
 
 	/**
@@ -0,0 +1,428 @@
+/**
+ * InvestmentCache.java
+ *
+ * This program remembers the portfolios chosen by Investment.invest() so a
+ * repeated budget against an unchanged bond universe is answered without
+ * rebuilding the priority queue.
+ *
+ * A Universe gets a new version stamp every time it changes, and portfolios
+ * are cached by version and budget, so a portfolio of an older version is never
+ * returned. The cache holds at most a fixed number of portfolios, and is split
+ * into segments that each evict their least recently used portfolio.
+ */
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This is a wrapper class for the Universe of bonds, and the cache of the
+ * portfolios chosen from it.
+ */
+public class InvestmentCache
+{
+	/** source of universe ids and version stamps */
+	private static final AtomicLong STAMPS = new AtomicLong();
+
+	/**
+	 * A bond universe that can only be changed through its methods, so that each
+	 * change gets a new version stamp. Readers always see a version together with
+	 * the bonds it stamps.
+	 *
+	 * Every change copies the bonds once, so a feed of updates should be applied
+	 * with putAll() and removeAll(), which take one copy and one version for the
+	 * whole batch.
+	 */
+	static final class Universe
+	{
+		/**
+		 * An unchanging list of bonds, the index of each bond name, and its version.
+		 */
+		private static final class State
+		{
+			final List<Investment.Bond> bonds;
+			final Map<String, Integer> index;
+			final long version;
+
+			State(List<Investment.Bond> bonds, Map<String, Integer> index)
+			{
+				this.bonds = Collections.unmodifiableList(bonds);
+				this.index = index;
+				this.version = STAMPS.incrementAndGet();
+			}
+		}
+
+		/** identifies this universe in the cache */
+		final long id = STAMPS.incrementAndGet();
+
+		private volatile State state;
+
+		/**
+		 * Creates a universe holding copies of bonds.
+		 *
+		 * @param bonds - Collection - investment opportunities
+		 */
+		Universe(Collection<Investment.Bond> bonds)
+		{
+			ArrayList<Investment.Bond> copies = new ArrayList<Investment.Bond>(bonds.size());
+			for (Investment.Bond b : bonds)
+			{
+				copies.add(new Investment.Bond(b.name, b.shares, b.cost, b.yield));
+			}
+			state = new State(copies, index(copies));
+		}
+
+		/**
+		 * Returns the index of each bond name in a list.
+		 */
+		private static Map<String, Integer> index(List<Investment.Bond> bonds)
+		{
+			HashMap<String, Integer> index = new HashMap<String, Integer>(bonds.size() * 4 / 3 + 1);
+			for (int i = 0; i < bonds.size(); i++)
+			{
+				index.put(bonds.get(i).name, i);
+			}
+			return index;
+		}
+
+		/**
+		 * @return the version stamp of the current bonds
+		 */
+		long version()
+		{
+			return state.version;
+		}
+
+		/**
+		 * @return the number of bonds
+		 */
+		int size()
+		{
+			return state.bonds.size();
+		}
+
+		/**
+		 * Adds a copy of a bond, or replaces the bond with the same name.
+		 *
+		 * @param bond - Bond - bond to add
+		 */
+		void put(Investment.Bond bond)
+		{
+			putAll(Collections.singletonList(bond));
+		}
+
+		/**
+		 * Adds a copy of each bond, or replaces the bond with the same name, as one
+		 * version.
+		 *
+		 * @param bonds - Collection - bonds to add
+		 */
+		synchronized void putAll(Collection<Investment.Bond> bonds)
+		{
+			if (bonds.isEmpty())
+			{
+				return;
+			}
+			ArrayList<Investment.Bond> copies = new ArrayList<Investment.Bond>(state.bonds.size() + bonds.size());
+			copies.addAll(state.bonds);
+			HashMap<String, Integer> index = new HashMap<String, Integer>(state.index);
+			for (Investment.Bond b : bonds)
+			{
+				Investment.Bond copy = new Investment.Bond(b.name, b.shares, b.cost, b.yield);
+				Integer i = index.get(b.name);
+				if (i == null)
+				{
+					index.put(b.name, copies.size());
+					copies.add(copy);
+				}
+				else
+				{
+					copies.set(i, copy);
+				}
+			}
+			state = new State(copies, index);
+		}
+
+		/**
+		 * Removes the bond with a name.
+		 *
+		 * @param name - String - bond name
+		 * @return true if there was such a bond
+		 */
+		boolean remove(String name)
+		{
+			return removeAll(Collections.singleton(name)) > 0;
+		}
+
+		/**
+		 * Removes the bonds with any of the names, as one version.
+		 *
+		 * @param names - Collection - bond names
+		 * @return the number of bonds removed
+		 */
+		synchronized int removeAll(Collection<String> names)
+		{
+			State current = state;
+			boolean[] removed = new boolean[current.bonds.size()];
+			int count = 0;
+			for (String name : names)
+			{
+				Integer i = current.index.get(name);
+				if (i != null && !removed[i])
+				{
+					removed[i] = true;
+					count++;
+				}
+			}
+			if (count == 0)
+			{
+				return 0;
+			}
+
+			ArrayList<Investment.Bond> bonds = new ArrayList<Investment.Bond>(current.bonds.size() - count);
+			for (int i = 0; i < removed.length; i++)
+			{
+				if (!removed[i])
+				{
+					bonds.add(current.bonds.get(i));
+				}
+			}
+			state = new State(bonds, index(bonds));
+			return count;
+		}
+	}
+
+	/**
+	 * Identifies a portfolio by the universe version and budget it was chosen for.
+	 */
+	private static final class Key
+	{
+		final long universe, version;
+		final int budget;
+
+		Key(long universe, long version, float budget)
+		{
+			this.universe = universe;
+			this.version = version;
+			this.budget = Float.floatToIntBits(budget);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+			{
+				return false;
+			}
+			Key k = (Key) o;
+			return universe == k.universe && version == k.version && budget == k.budget;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Long.hashCode(version * 31 + budget);
+		}
+	}
+
+	/**
+	 * The fields of each bond of a portfolio, which cannot be changed by callers.
+	 */
+	private static final class Portfolio
+	{
+		final String[] names;
+		final float[] shares, costs, yields;
+
+		Portfolio(Collection<Investment.Bond> bonds)
+		{
+			int n = bonds.size();
+			names = new String[n];
+			shares = new float[n];
+			costs = new float[n];
+			yields = new float[n];
+			int i = 0;
+			for (Investment.Bond b : bonds)
+			{
+				names[i] = b.name;
+				shares[i] = b.shares;
+				costs[i] = b.cost;
+				yields[i] = b.yield;
+				i++;
+			}
+		}
+
+		/**
+		 * @return an unmodifiable list of new bonds holding the portfolio
+		 */
+		List<Investment.Bond> bonds()
+		{
+			ArrayList<Investment.Bond> bonds = new ArrayList<Investment.Bond>(names.length);
+			for (int i = 0; i < names.length; i++)
+			{
+				bonds.add(new Investment.Bond(names[i], shares[i], costs[i], yields[i]));
+			}
+			return Collections.unmodifiableList(bonds);
+		}
+	}
+
+	/**
+	 * A least recently used map of portfolios, guarded by its own lock.
+	 */
+	@SuppressWarnings("serial")
+	private final class Segment extends LinkedHashMap<Key, Portfolio>
+	{
+		final int capacity;
+
+		Segment(int capacity)
+		{
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Portfolio> eldest)
+		{
+			if (size() > capacity)
+			{
+				evictions.increment();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/** most segments, each with its own lock */
+	static final int MAX_SEGMENTS = 16;
+
+	private final Segment[] segments;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates a cache holding up to maxPortfolios portfolios.
+	 *
+	 * @param maxPortfolios - int - most portfolios kept
+	 */
+	InvestmentCache(int maxPortfolios)
+	{
+		if (maxPortfolios < 1)
+		{
+			throw new IllegalArgumentException("cache must hold at least one portfolio: " + maxPortfolios);
+		}
+		int count = Math.min(MAX_SEGMENTS, Integer.highestOneBit(maxPortfolios));
+		segments = new Segment[count];
+		for (int i = 0; i < count; i++)
+		{
+			// spread the remainder over the first segments
+			segments[i] = new Segment(maxPortfolios / count + (i < maxPortfolios % count ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Returns the segment that holds a key.
+	 */
+	private Segment segment(Key key)
+	{
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+	}
+
+	/**
+	 * Returns the optimum list of bonds to buy from the current version of a
+	 * universe, choosing it with Investment.invest() only if it is not cached.
+	 *
+	 * @param total    total amount available to invest
+	 * @param universe investment opportunities
+	 * @return an unmodifiable list of new bonds, not shared with any other caller
+	 */
+	Collection<Investment.Bond> invest(float total, Universe universe)
+	{
+		Universe.State state = universe.state;
+		Key key = new Key(universe.id, state.version, total);
+		Segment segment = segment(key);
+
+		Portfolio portfolio;
+		synchronized (segment)
+		{
+			portfolio = segment.get(key);
+		}
+		if (portfolio != null)
+		{
+			hits.increment();
+			return portfolio.bonds();
+		}
+
+		// two threads missing at once may both invest, and they choose the same
+		// portfolio
+		misses.increment();
+		portfolio = new Portfolio(Investment.invest(total, state.bonds));
+		synchronized (segment)
+		{
+			segment.put(key, portfolio);
+		}
+		return portfolio.bonds();
+	}
+
+	/**
+	 * Removes every portfolio of a universe, whatever its version. Portfolios of
+	 * an older version are never returned, so this only frees their space sooner.
+	 *
+	 * @param universe - Universe - universe to forget
+	 */
+	void invalidate(Universe universe)
+	{
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				segment.keySet().removeIf(key -> key.universe == universe.id);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of portfolios cached
+	 */
+	int size()
+	{
+		int size = 0;
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of calls answered from the cache
+	 */
+	long hits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of calls that had to invest
+	 */
+	long misses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of portfolios removed to make room for newer ones
+	 */
+	long evictions()
+	{
+		return evictions.sum();
+	}
+}
@@ -0,0 +1,265 @@
+/**
+ * InvestmentMetrics.java
+ *
+ * This program collects the latency, work done and memory allocated by every
+ * call to Investment.invest(), and emits a Java Flight Recorder event for each
+ * call so slow calls can be matched with universe size and garbage collection.
+ *
+ * Latencies and allocations go into histograms with 32 buckets for each power
+ * of two, which are accurate to about 3% and are recorded without allocating.
+ */
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * This is a wrapper class for the Histogram, the InvestEvent and the counters
+ * of all calls to Investment.invest().
+ */
+public class InvestmentMetrics
+{
+	/**
+	 * A concurrent histogram of non-negative long values, with buckets that grow
+	 * with the value so the relative error stays the same.
+	 */
+	static final class Histogram
+	{
+		/** each power of two is split into 2^SUB_BUCKET_BITS buckets */
+		static final int SUB_BUCKET_BITS = 5;
+		static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+		private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+		private final LongAdder total = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Returns the bucket of a value. Values below 2 * SUB_BUCKETS have a bucket
+		 * each.
+		 */
+		static int bucket(long value)
+		{
+			if (value < SUB_BUCKETS)
+			{
+				return (int) Math.max(0, value);
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int shift = exponent - SUB_BUCKET_BITS;
+			return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+		}
+
+		/**
+		 * Returns the highest value that falls into a bucket.
+		 */
+		static long highestValue(int bucket)
+		{
+			if (bucket < SUB_BUCKETS)
+			{
+				return bucket;
+			}
+			int shift = bucket / SUB_BUCKETS - 1;
+			long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+			return lowest + (1L << shift) - 1;
+		}
+
+		/**
+		 * Counts one value.
+		 *
+		 * @param value - long - value to count
+		 */
+		void record(long value)
+		{
+			counts.incrementAndGet(bucket(value));
+			total.increment();
+			max.accumulateAndGet(value, Math::max);
+		}
+
+		/**
+		 * @return the number of values counted
+		 */
+		long count()
+		{
+			return total.sum();
+		}
+
+		/**
+		 * @return the largest value counted
+		 */
+		long max()
+		{
+			return max.get();
+		}
+
+		/**
+		 * Returns a value that is at least as large as the given fraction of the
+		 * values counted, e.g. 0.99 for the 99th percentile.
+		 *
+		 * @param fraction - double - between 0 and 1
+		 * @return the highest value of the bucket holding that percentile
+		 */
+		long percentile(double fraction)
+		{
+			long rank = (long) Math.ceil(fraction * count());
+			long seen = 0;
+			for (int i = 0; i < counts.length(); i++)
+			{
+				seen += counts.get(i);
+				if (seen >= rank && seen > 0)
+				{
+					return Math.min(highestValue(i), max());
+				}
+			}
+			return max();
+		}
+
+		/**
+		 * Forgets all values counted.
+		 */
+		void reset()
+		{
+			for (int i = 0; i < counts.length(); i++)
+			{
+				counts.set(i, 0);
+			}
+			total.reset();
+			max.set(0);
+		}
+	}
+
+	/**
+	 * Flight recorder event for one call to Investment.invest(). Its duration is
+	 * the latency of the call.
+	 */
+	@Name("Investment.Invest")
+	@Label("Invest")
+	@Category("Investment")
+	static final class InvestEvent extends Event
+	{
+		@Label("Budget")
+		float budget;
+
+		@Label("Universe Size")
+		int universeSize;
+
+		@Label("Bonds Scanned")
+		int bondsScanned;
+
+		@Label("Bonds Bought")
+		int bondsBought;
+
+		@Label("Heap Operations")
+		long heapOperations;
+
+		@Label("Allocated")
+		@DataAmount
+		long allocatedBytes;
+	}
+
+	/** latency of each call in nanoseconds */
+	static final Histogram LATENCY_NANOS = new Histogram();
+
+	/** bytes allocated by the calling thread during each call */
+	static final Histogram ALLOCATED_BYTES = new Histogram();
+
+	/** totals over all calls */
+	static final LongAdder CALLS = new LongAdder();
+	static final LongAdder BONDS_SCANNED = new LongAdder();
+	static final LongAdder BONDS_BOUGHT = new LongAdder();
+	static final LongAdder HEAP_OPERATIONS = new LongAdder();
+
+	/** the thread bean, if it can count the bytes allocated by a thread */
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	/**
+	 * Returns the thread bean if it can count allocations, enabling the count.
+	 */
+	private static com.sun.management.ThreadMXBean threads()
+	{
+		try
+		{
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean)
+			{
+				com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+				if (threads.isThreadAllocatedMemorySupported())
+				{
+					threads.setThreadAllocatedMemoryEnabled(true);
+					return threads;
+				}
+			}
+		}
+		catch (UnsupportedOperationException | SecurityException e)
+		{
+			// allocations are reported as 0
+		}
+		return null;
+	}
+
+	/**
+	 * @return the bytes allocated so far by the current thread, or 0 if that is
+	 *         not known
+	 */
+	static long allocatedBytes()
+	{
+		return THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+	}
+
+	/**
+	 * Records a finished call to Investment.invest(), and commits its event.
+	 *
+	 * @param event          - InvestEvent - begun when the call started, with its
+	 *                       bonds scanned and heap operations filled in
+	 * @param startNanos     - long - System.nanoTime() when the call started
+	 * @param startAllocated - long - allocatedBytes() when the call started
+	 */
+	static void record(InvestEvent event, long startNanos, long startAllocated)
+	{
+		long allocated = allocatedBytes() - startAllocated;
+		LATENCY_NANOS.record(System.nanoTime() - startNanos);
+		ALLOCATED_BYTES.record(allocated);
+		CALLS.increment();
+		BONDS_SCANNED.add(event.bondsScanned);
+		BONDS_BOUGHT.add(event.bondsBought);
+		HEAP_OPERATIONS.add(event.heapOperations);
+
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.allocatedBytes = allocated;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Forgets all calls recorded.
+	 */
+	static void reset()
+	{
+		LATENCY_NANOS.reset();
+		ALLOCATED_BYTES.reset();
+		CALLS.reset();
+		BONDS_SCANNED.reset();
+		BONDS_BOUGHT.reset();
+		HEAP_OPERATIONS.reset();
+	}
+
+	/**
+	 * @return a summary of all calls recorded
+	 */
+	static String report()
+	{
+		return String.format(
+				"calls=%d latency(us) p50=%.1f p99=%.1f p999=%.1f max=%.1f%n"
+						+ "bonds scanned=%d bought=%d heap operations=%d allocated p50=%dB p99=%dB",
+				CALLS.sum(), LATENCY_NANOS.percentile(0.50) / 1e3, LATENCY_NANOS.percentile(0.99) / 1e3,
+				LATENCY_NANOS.percentile(0.999) / 1e3, LATENCY_NANOS.max() / 1e3, BONDS_SCANNED.sum(),
+				BONDS_BOUGHT.sum(), HEAP_OPERATIONS.sum(), ALLOCATED_BYTES.percentile(0.50),
+				ALLOCATED_BYTES.percentile(0.99));
+	}
+}
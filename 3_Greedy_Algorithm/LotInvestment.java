@@ -0,0 +1,447 @@
+/**
+ * LotInvestment.java
+ *
+ * This program selects an optimal investment portfolio when shares can only be
+ * bought whole, or in multiples of a lot size. That is a bounded knapsack
+ * problem, where buying the highest yielding bond first is not always optimal,
+ * so it is solved exactly with dynamic programming, or with branch and bound
+ * using the greedy algorithm of Investment as the upper bound.
+ *
+ * Costs are in whole cents, with the cost of each lot rounded up and the budget
+ * rounded down so a portfolio never costs more than the budget. Each bond's
+ * lots are split into parts of 1, 2, 4, ... lots so a bond with n lots becomes
+ * about log2(n) 0/1 items.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This is a wrapper class for the whole lot investment algorithms and the
+ * parallel update of the dynamic programming table.
+ */
+public class LotInvestment
+{
+	/** budget range below which a table update is not split into sub-tasks */
+	static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	/** most bits used at once to record which items the table bought */
+	static final long MAX_TAKEN_BITS = 1L << 28;
+
+	/** profits closer than this are considered equal */
+	static final double EPSILON = 1e-9;
+
+	/**
+	 * Returns an amount in whole cents, rounded up or down. An amount within half
+	 * a float ulp of a whole cent is that cent, so e.g. 0.1f is 10 cents.
+	 *
+	 * @param dollars  - float - amount in dollars
+	 * @param multiple - long - number of times the amount is counted
+	 * @param up       - boolean - whether to round up
+	 */
+	static long cents(float dollars, long multiple, boolean up)
+	{
+		double exact = dollars * 100.0 * multiple;
+		double error = Math.ulp(dollars) * 50.0 * multiple;
+		return (long) (up ? Math.ceil(exact - error) : Math.floor(exact + error));
+	}
+
+	/**
+	 * The 0/1 items made by splitting the lots of each bond, in descending order
+	 * of profit per budget unit, so the greedy bound holds.
+	 */
+	static final class Items
+	{
+		/** bonds with at least one affordable lot, most profit per cent first */
+		final ArrayList<Investment.Bond> bonds = new ArrayList<Investment.Bond>();
+		/** bond index, number of lots, cost in budget units and profit per item */
+		int[] bond;
+		long[] lots;
+		int[] cost;
+		double[] profit;
+		int count;
+		/** budget in budget units, which are cents divided by the gcd of the costs */
+		int capacity;
+
+		/**
+		 * Splits the lots of each bond into items.
+		 *
+		 * @param total   - float - total amount available to invest
+		 * @param bonds   - Collection - investment opportunities
+		 * @param lotSize - int - number of shares in a lot
+		 */
+		Items(float total, Collection<Investment.Bond> bonds, int lotSize)
+		{
+			if (lotSize < 1)
+			{
+				throw new IllegalArgumentException("lot size must be positive: " + lotSize);
+			}
+			long budget = cents(total, 1, false);
+			if (budget > Integer.MAX_VALUE)
+			{
+				throw new IllegalArgumentException("budget too large: " + total);
+			}
+
+			for (Investment.Bond b : bonds)
+			{
+				long lotCost = cents(b.cost, lotSize, true);
+				if (b.shares >= lotSize && lotCost > 0 && lotCost <= budget)
+				{
+					this.bonds.add(b);
+				}
+			}
+			// profit is from the exact cost but the budget is spent in rounded cents,
+			// so order by their ratio rather than by yield
+			Collections.sort(this.bonds, Comparator.comparingDouble(
+					(Investment.Bond b) -> (double) lotSize * b.cost * b.yield / cents(b.cost, lotSize, true))
+					.reversed());
+
+			// dividing every cost by their gcd shrinks the table without changing the
+			// answer
+			long gcd = 0;
+			int parts = 0;
+			for (Investment.Bond b : this.bonds)
+			{
+				gcd = gcd(gcd, cents(b.cost, lotSize, true));
+				parts += 64 - Long.numberOfLeadingZeros((long) (b.shares / lotSize));
+			}
+			this.capacity = (int) (gcd == 0 ? 0 : budget / gcd);
+
+			this.bond = new int[parts];
+			this.lots = new long[parts];
+			this.cost = new int[parts];
+			this.profit = new double[parts];
+			for (int i = 0; i < this.bonds.size(); i++)
+			{
+				Investment.Bond b = this.bonds.get(i);
+				long lotCost = cents(b.cost, lotSize, true) / gcd;
+				double lotProfit = (double) lotSize * b.cost * b.yield;
+				long remaining = (long) (b.shares / lotSize);
+				for (long part = 1; remaining > 0; part *= 2)
+				{
+					long n = Math.min(part, remaining);
+					remaining -= n;
+					if (n * lotCost <= capacity)
+					{
+						bond[count] = i;
+						lots[count] = n;
+						cost[count] = (int) (n * lotCost);
+						profit[count] = n * lotProfit;
+						count++;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Creates the portfolio holding the chosen items.
+		 *
+		 * @param chosen  - boolean[] - whether each item is bought
+		 * @param lotSize - int - number of shares in a lot
+		 * @return a portfolio of bonds, most profit per cent first
+		 */
+		Collection<Investment.Bond> portfolio(boolean[] chosen, int lotSize)
+		{
+			long[] bought = new long[bonds.size()];
+			for (int k = 0; k < count; k++)
+			{
+				if (chosen[k])
+				{
+					bought[bond[k]] += lots[k];
+				}
+			}
+			ArrayList<Investment.Bond> investments = new ArrayList<Investment.Bond>();
+			for (int i = 0; i < bought.length; i++)
+			{
+				if (bought[i] > 0)
+				{
+					Investment.Bond b = bonds.get(i);
+					investments.add(new Investment.Bond(b.name, (float) (bought[i] * lotSize), b.cost, b.yield));
+				}
+			}
+			return investments;
+		}
+	}
+
+	/**
+	 * Greatest common divisor of a and b.
+	 */
+	static long gcd(long a, long b)
+	{
+		while (b != 0)
+		{
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	/**
+	 * Computes one row of the dynamic programming table for budgets in [left,
+	 * right), splitting the range into concurrent sub-tasks. Each sub-task owns
+	 * whole 64 bit words of the taken bits.
+	 */
+	@SuppressWarnings("serial")
+	static final class UpdateTask extends RecursiveAction
+	{
+		final double[] previous, next;
+		final long[] taken;
+		final int cost;
+		final double profit;
+		final int left, right;
+
+		/**
+		 * Construct the update of next from previous for one item.
+		 *
+		 * @param previous best profit for each budget without the item
+		 * @param next     receives the best profit for each budget with the item
+		 * @param taken    receives a bit for each budget where the item is bought,
+		 *                 unless it is null
+		 * @param cost     cost of the item
+		 * @param profit   profit of the item
+		 * @param left     first budget to update
+		 * @param right    budget beyond the last one to update
+		 */
+		UpdateTask(double[] previous, double[] next, long[] taken, int cost, double profit, int left, int right)
+		{
+			this.previous = previous;
+			this.next = next;
+			this.taken = taken;
+			this.cost = cost;
+			this.profit = profit;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (right - left <= PARALLEL_THRESHOLD || ForkJoinPool.getCommonPoolParallelism() == 1)
+			{
+				int w = left;
+				for (; w < right && w < cost; w++)
+				{
+					next[w] = previous[w];
+				}
+				for (; w < right; w++)
+				{
+					double with = previous[w - cost] + profit;
+					if (with > previous[w] + EPSILON)
+					{
+						next[w] = with;
+						if (taken != null)
+						{
+							taken[w >>> 6] |= 1L << w;
+						}
+					}
+					else
+					{
+						next[w] = previous[w];
+					}
+				}
+			}
+			else
+			{
+				int mid = ((left + right) >>> 1) & ~63;
+				invokeAll(new UpdateTask(previous, next, taken, cost, profit, left, mid),
+						new UpdateTask(previous, next, taken, cost, profit, mid, right));
+			}
+		}
+	}
+
+	/**
+	 * Returns the most profitable portfolio of whole lots, using a one
+	 * dimensional table of the best profit for each budget that is updated in
+	 * parallel for each item. Memory is a few tables the size of the budget, plus
+	 * at most MAX_TAKEN_BITS bits recording which items were bought.
+	 *
+	 * @param total   total amount available to invest
+	 * @param bonds   collection of investment opportunities
+	 * @param lotSize number of shares in a lot, 1 for whole shares
+	 * @return a portfolio of bonds
+	 */
+	static Collection<Investment.Bond> invest(float total, Collection<Investment.Bond> bonds, int lotSize)
+	{
+		Items items = new Items(total, bonds, lotSize);
+		boolean[] chosen = new boolean[items.count];
+		choose(items, 0, items.count, items.capacity, chosen);
+		return items.portfolio(chosen, lotSize);
+	}
+
+	/**
+	 * Computes the best profit for each budget up to capacity from the items in
+	 * [from, to).
+	 *
+	 * @param taken if not null, receives a bit for each item and budget where the
+	 *              item is bought
+	 * @return the best profit for each budget
+	 */
+	static double[] profits(Items items, int from, int to, int capacity, long[][] taken)
+	{
+		int width = capacity + 1;
+		double[] previous = new double[width];
+		double[] next = new double[width];
+		for (int k = from; k < to; k++)
+		{
+			long[] bits = null;
+			if (taken != null)
+			{
+				bits = taken[k - from] = new long[(width + 63) >>> 6];
+			}
+			ForkJoinPool.commonPool()
+					.invoke(new UpdateTask(previous, next, bits, items.cost[k], items.profit[k], 0, width));
+			double[] swap = previous;
+			previous = next;
+			next = swap;
+		}
+		return previous;
+	}
+
+	/**
+	 * Chooses the items in [from, to) to buy with capacity. If recording which
+	 * items were bought would take more than MAX_TAKEN_BITS, the items are split
+	 * in half, the best profit of each half is computed for every budget, and
+	 * each half is solved again with its share of the budget that gives the best
+	 * total. That about doubles the work, but memory stays the size of the budget.
+	 *
+	 * @param chosen receives whether each item is bought
+	 */
+	static void choose(Items items, int from, int to, int capacity, boolean[] chosen)
+	{
+		if (to - from == 1)
+		{
+			chosen[from] = items.cost[from] <= capacity && items.profit[from] > EPSILON;
+			return;
+		}
+		if (to == from || capacity == 0)
+		{
+			return;
+		}
+
+		if ((long) (to - from) * (capacity + 1) <= MAX_TAKEN_BITS)
+		{
+			long[][] taken = new long[to - from][];
+			profits(items, from, to, capacity, taken);
+
+			// walk back from the full budget through the items that were bought
+			int w = capacity;
+			for (int k = to - 1; k >= from; k--)
+			{
+				if ((taken[k - from][w >>> 6] & (1L << w)) != 0)
+				{
+					chosen[k] = true;
+					w -= items.cost[k];
+				}
+			}
+			return;
+		}
+
+		int mid = (from + to) >>> 1;
+		double[] first = profits(items, from, mid, capacity, null);
+		double[] second = profits(items, mid, to, capacity, null);
+		int split = 0;
+		double best = -1;
+		for (int w = 0; w <= capacity; w++)
+		{
+			double profit = first[w] + second[capacity - w];
+			if (profit > best + EPSILON)
+			{
+				best = profit;
+				split = w;
+			}
+		}
+		first = second = null;
+		choose(items, from, mid, split, chosen);
+		choose(items, mid, to, capacity - split, chosen);
+	}
+
+	/**
+	 * Upper bound on the profit from items k onward with the remaining budget.
+	 * This is the greedy algorithm of Investment.invest(): items are in descending
+	 * order of profit per budget unit, and the first one that does not fit is
+	 * bought fractionally.
+	 */
+	static double bound(Items items, int k, long remaining)
+	{
+		double profit = 0;
+		for (; k < items.count; k++)
+		{
+			if (items.cost[k] > remaining)
+			{
+				return profit + items.profit[k] * remaining / items.cost[k];
+			}
+			remaining -= items.cost[k];
+			profit += items.profit[k];
+		}
+		return profit;
+	}
+
+	/**
+	 * Returns the most profitable portfolio of whole lots by a depth first search
+	 * that buys the most profitable items per cent first, and abandons a branch when the
+	 * greedy bound on its profit cannot beat the best portfolio found so far. This
+	 * uses no table, so it suits budgets that are too large for invest(), but
+	 * its running time is exponential in the worst case.
+	 *
+	 * @param total   total amount available to invest
+	 * @param bonds   collection of investment opportunities
+	 * @param lotSize number of shares in a lot, 1 for whole shares
+	 * @return a portfolio of bonds
+	 */
+	static Collection<Investment.Bond> investBranchAndBound(float total, Collection<Investment.Bond> bonds,
+			int lotSize)
+	{
+		Items items = new Items(total, bonds, lotSize);
+		int n = items.count;
+		boolean[] chosen = new boolean[n];
+		boolean[] best = new boolean[n];
+		double bestProfit = -1;
+
+		int k = 0;
+		long remaining = items.capacity;
+		double profit = 0;
+		while (true)
+		{
+			if (k < n && profit + bound(items, k, remaining) > bestProfit + EPSILON)
+			{
+				// buy the item if it fits and keep going deeper
+				chosen[k] = items.cost[k] <= remaining;
+				if (chosen[k])
+				{
+					remaining -= items.cost[k];
+					profit += items.profit[k];
+				}
+				k++;
+				continue;
+			}
+
+			if (profit > bestProfit + EPSILON)
+			{
+				bestProfit = profit;
+				System.arraycopy(chosen, 0, best, 0, k);
+				Arrays.fill(best, k, n, false);
+			}
+
+			// backtrack to the last item bought and try without it
+			int j = k - 1;
+			while (j >= 0 && !chosen[j])
+			{
+				j--;
+			}
+			if (j < 0)
+			{
+				break;
+			}
+			chosen[j] = false;
+			remaining += items.cost[j];
+			profit -= items.profit[j];
+			k = j + 1;
+		}
+		return items.portfolio(best, lotSize);
+	}
+}
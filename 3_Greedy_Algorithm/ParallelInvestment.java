@@ -0,0 +1,246 @@
+/**
+ * ParallelInvestment.java
+ *
+ * This program selects the same portfolio as the greedy algorithm of
+ * Investment for very large bond universes, using all the threads of the
+ * common fork-join pool instead of one priority queue.
+ *
+ * Bonds are partitioned in parallel into buckets of yield, highest yield first.
+ * A prefix sum of the total cost of each bucket finds the bucket where the
+ * money runs out. Every bond in an earlier bucket is bought in full, and only
+ * the bonds of that one bucket are sorted and bought greedily.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * This is a wrapper class for the parallel greedy algorithm and the sub-task
+ * that runs one of its phases over slices of the bonds.
+ */
+public class ParallelInvestment
+{
+	/** number of bonds below which Investment.invest() stays sequential */
+	static final int THRESHOLD = 1 << 16;
+
+	/** most yield buckets used */
+	static final int MAX_BUCKETS = 1 << 12;
+
+	/** number of slices given to each thread of the pool */
+	static final int SLICES_PER_THREAD = 4;
+
+	/**
+	 * Runs body for each slice in [left, right) as concurrent sub-tasks.
+	 */
+	@SuppressWarnings("serial")
+	static final class ForEachSlice extends RecursiveAction
+	{
+		final IntConsumer body;
+		final int left, right;
+
+		ForEachSlice(IntConsumer body, int left, int right)
+		{
+			this.body = body;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (right - left == 1)
+			{
+				body.accept(left);
+			}
+			else
+			{
+				int mid = (left + right) >>> 1;
+				invokeAll(new ForEachSlice(body, left, mid), new ForEachSlice(body, mid, right));
+			}
+		}
+	}
+
+	/**
+	 * Runs body for every slice on the common pool.
+	 */
+	private static void forEachSlice(int slices, IntConsumer body)
+	{
+		ForkJoinPool.commonPool().invoke(new ForEachSlice(body, 0, slices));
+	}
+
+	/**
+	 * Returns the optimum list of bonds to buy. The portfolio is the one
+	 * Investment.invest() returns, except that a different one of several bonds of
+	 * equal yield may be bought, and the fractional position may differ by float
+	 * rounding because the cost of the bonds bought in full is summed in a
+	 * different order.
+	 *
+	 * @param total total amount available to invest
+	 * @param bonds collection of investment opportunities
+	 * @return a fixed-size list of bonds, in descending order of yield bucket
+	 */
+	static Collection<Investment.Bond> invest(float total, Collection<Investment.Bond> bonds)
+	{
+		// a random access list is read in place rather than copied by this thread
+		final List<Investment.Bond> all = bonds instanceof List && bonds instanceof RandomAccess
+				? (List<Investment.Bond>) bonds
+				: Arrays.asList(bonds.toArray(new Investment.Bond[0]));
+		final int n = all.size();
+		if (total == 0 || n == 0)
+		{
+			return new ArrayList<Investment.Bond>();
+		}
+
+		final int slices = Math.min(n, ForkJoinPool.getCommonPoolParallelism() * SLICES_PER_THREAD);
+		final int[] sliceStart = new int[slices + 1];
+		for (int s = 0; s <= slices; s++)
+		{
+			sliceStart[s] = (int) ((long) n * s / slices);
+		}
+
+		// range of yields, to size the buckets
+		final float[] sliceMin = new float[slices];
+		final float[] sliceMax = new float[slices];
+		forEachSlice(slices, s -> {
+			float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+			for (int i = sliceStart[s]; i < sliceStart[s + 1]; i++)
+			{
+				float yield = all.get(i).yield;
+				min = Math.min(min, yield);
+				max = Math.max(max, yield);
+			}
+			sliceMin[s] = min;
+			sliceMax[s] = max;
+		});
+		float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+		for (int s = 0; s < slices; s++)
+		{
+			min = Math.min(min, sliceMin[s]);
+			max = Math.max(max, sliceMax[s]);
+		}
+		// about one bucket per bond of a slice keeps the histograms the size of
+		// the input
+		final int buckets = Math.max(1, Math.min(MAX_BUCKETS, n / slices));
+		final float top = max;
+		final double scale = max > min ? buckets / ((double) max - min) : 0;
+
+		// count and cost of each bucket in each slice, with bucket 0 holding the
+		// highest yields; bonds with no shares are never bought, so they are left
+		// out of every bucket
+		final int[] bucketOf = new int[n];
+		final int[][] counts = new int[slices][buckets];
+		final double[][] costs = new double[slices][buckets];
+		forEachSlice(slices, s -> {
+			int[] count = counts[s];
+			double[] cost = costs[s];
+			for (int i = sliceStart[s]; i < sliceStart[s + 1]; i++)
+			{
+				Investment.Bond bond = all.get(i);
+				if (bond.shares == 0)
+				{
+					bucketOf[i] = -1;
+					continue;
+				}
+				int b = Math.min(buckets - 1, (int) ((top - bond.yield) * scale));
+				bucketOf[i] = b;
+				count[b]++;
+				cost[b] += bond.totalCost();
+			}
+		});
+
+		// number of bonds and running total cost up to the end of each bucket,
+		// with each slice task summing a range of buckets
+		final int[] bucketCount = new int[buckets];
+		final double[] spent = new double[buckets];
+		forEachSlice(slices, c -> {
+			for (int b = buckets * c / slices; b < buckets * (c + 1) / slices; b++)
+			{
+				int count = 0;
+				double sum = 0;
+				for (int s = 0; s < slices; s++)
+				{
+					count += counts[s][b];
+					sum += costs[s][b];
+				}
+				bucketCount[b] = count;
+				spent[b] = sum;
+			}
+		});
+		Arrays.parallelPrefix(spent, Double::sum);
+
+		// the first bucket that cannot be bought in full
+		int last = 0;
+		while (last < buckets && spent[last] <= total)
+		{
+			last++;
+		}
+		final int lastBucket = last;
+
+		// where each bucket starts, ordered by bucket; buckets after lastBucket are
+		// not needed
+		final int needed = Math.min(lastBucket + 1, buckets);
+		final int[] bucketStart = new int[needed + 1];
+		for (int b = 0; b < needed; b++)
+		{
+			bucketStart[b + 1] = bucketStart[b] + bucketCount[b];
+		}
+		final int whole = bucketStart[Math.min(lastBucket, buckets)];
+
+		// where each slice's bonds of each bucket go, ordered by slice within a
+		// bucket, with each slice task placing a range of buckets
+		final int[][] offsets = new int[slices][buckets];
+		forEachSlice(slices, c -> {
+			for (int b = needed * c / slices; b < needed * (c + 1) / slices; b++)
+			{
+				int offset = bucketStart[b];
+				for (int s = 0; s < slices; s++)
+				{
+					offsets[s][b] = offset;
+					offset += counts[s][b];
+				}
+			}
+		});
+
+		// copies of the bonds bought in full go straight to the portfolio, so
+		// original bonds are not modified, and the bonds of the bucket where the
+		// money runs out are set aside
+		final Investment.Bond[] portfolio = new Investment.Bond[bucketStart[needed]];
+		final Investment.Bond[] rest = new Investment.Bond[bucketStart[needed] - whole];
+		forEachSlice(slices, s -> {
+			int[] offset = offsets[s];
+			for (int i = sliceStart[s]; i < sliceStart[s + 1]; i++)
+			{
+				int b = bucketOf[i];
+				Investment.Bond bond = all.get(i);
+				if (b >= 0 && b < lastBucket)
+				{
+					portfolio[offset[b]++] = new Investment.Bond(bond.name, bond.shares, bond.cost, bond.yield);
+				}
+				else if (b == lastBucket)
+				{
+					rest[offset[b]++ - whole] = bond;
+				}
+			}
+		});
+
+		// resolve the bucket where the money runs out with the sequential greedy,
+		// and put what it buys after the bonds bought in full
+		int size = whole;
+		if (lastBucket < buckets)
+		{
+			// a skewed yield distribution can put most bonds in this bucket
+			Arrays.parallelSort(rest, new Investment.HighestBondYieldComparator());
+			float money = lastBucket == 0 ? total : (float) (total - spent[lastBucket - 1]);
+			for (Investment.Bond c : Investment.investInOrder(money, Arrays.asList(rest).iterator()))
+			{
+				portfolio[size++] = c;
+			}
+		}
+		return Arrays.asList(portfolio).subList(0, size);
+	}
+}
@@ -3,6 +3,7 @@
  * ParallelQuickSort.java 
  */
 
+import java.util.Arrays;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
 
@@ -23,8 +24,11 @@ import java.util.concurrent.RecursiveAction;
 public class ParallelQuickSort extends RecursiveAction
 {
 
-	/** value array, and indexes to interval [left …right) in the array. */
-	int values[], left, right;
+	/**
+	 * value array, optional array whose elements move with the values, and
+	 * indexes to interval [left …right) in the arrays.
+	 */
+	int values[], carried[], left, right;
 
 	/**
 	 * Construct parallel sorter for values array from [left, right) using scratch
@@ -35,16 +39,49 @@ public class ParallelQuickSort extends RecursiveAction
 	 * @param right  index beyond last value to sort
 	 */
 	ParallelQuickSort(int[] values, int left, int right)
+	{
+		this(values, null, left, right);
+	}
+
+	/**
+	 * Construct parallel sorter for values array from [left, right) that moves
+	 * each element of carried with the value at the same index. Equal values are
+	 * ordered by their carried element, so carrying the indexes of the values
+	 * makes the sort stable.
+	 * 
+	 * @param values  the array to sort
+	 * @param carried array whose elements move with the values, or null
+	 * @param left    index of first element to sort
+	 * @param right   index beyond last value to sort
+	 */
+	ParallelQuickSort(int[] values, int[] carried, int left, int right)
 	{
 		this.values = values;
+		this.carried = carried;
 		this.left = left;
 		this.right = right;
 	}
 
+	/** number of values below which a sub-task uses the standard sort */
+	static final int THRESHOLD = 1 << 13;
+
+	/** whether each sub-task prints the interval it sorts */
+	static boolean trace = false;
+
 	/**
-	 * Divide input by pivot value which is the first unused pivot at the lowest
-	 * index, and invoke sort them as concurrent sub-tasks. If size of input is
-	 * below threshold or only one thread available, use standard sort.
+	 * @return the parallelism of the pool running the current task, or of the
+	 *         common pool outside of one
+	 */
+	static int parallelism()
+	{
+		ForkJoinPool pool = getPool();
+		return pool == null ? ForkJoinPool.getCommonPoolParallelism() : pool.getParallelism();
+	}
+
+	/**
+	 * Divide input by pivot value which is moved to the lowest index, and invoke
+	 * sort them as concurrent sub-tasks. If size of input is below threshold or
+	 * only one thread available, use standard sort.
 	 *
 	 * @see java.util.concurrent.RecursiveTask#compute()
 	 */
@@ -52,49 +89,118 @@ public class ParallelQuickSort extends RecursiveAction
 	protected void compute()
 	{
 		int len = right - left;
-		if ((len <= 1) || (ForkJoinPool.getCommonPoolParallelism() == 1))
+		if ((len <= 1) || (len < THRESHOLD && !trace) || (parallelism() == 1))
 		{
-			System.out.printf("%s: %d %d\n", Thread.currentThread().getName(), left, right);
+			if (trace)
+			{
+				System.out.printf("%s: %d %d\n", Thread.currentThread().getName(), left, right);
+			}
+			if (carried == null)
+			{
+				Arrays.sort(values, left, right);
+			}
+			else
+			{
+				sortCarried();
+			}
 		}
 		else
 		{
-			int pivotIndex = left; // leftmost index of unsorted data is pivot
-			int storeIndex = pivotIndex + 1;
-			for (int i = storeIndex; i < values.length; i++)
+			// median of the first, middle and last values is the pivot, so sorted
+			// input is split in half
+			int mid = (left + right) >>> 1;
+			if (values[mid] < values[left])
+			{
+				swap(mid, left);
+			}
+			if (values[right - 1] < values[left])
+			{
+				swap(right - 1, left);
+			}
+			if (values[right - 1] < values[mid])
+			{
+				swap(right - 1, mid);
+			}
+			swap(left, mid);
+
+			// puts values less than pivot value before lessIndex, and values greater
+			// than it from greaterIndex, so values equal to the pivot are left in the
+			// middle and never sorted again
+			int pivot = values[left];
+			int lessIndex = left, greaterIndex = right;
+			for (int i = left; i < greaterIndex;)
 			{
-				// puts values less than pivot value to one side of the storeIndex
-				if (values[i] < values[pivotIndex])
+				if (values[i] < pivot)
 				{
-					swap(values, i, storeIndex);
-					storeIndex++;
+					swap(i++, lessIndex++);
+				}
+				else if (values[i] > pivot)
+				{
+					swap(i, --greaterIndex);
+				}
+				else
+				{
+					i++;
 				}
 			}
 
-			// places the pivot value between values less than and values greater than
-			// it on either side by swapping with the storeIndex location
-			swap(values, pivotIndex, storeIndex - 1);
+			// values in the middle are equal, so only their carried elements are left
+			// to order
+			if (carried != null)
+			{
+				Arrays.sort(carried, lessIndex, greaterIndex);
+			}
 
-			System.out.printf("%s: %d %d %d\n", Thread.currentThread().getName(), left, storeIndex, right);
+			if (trace)
+			{
+				System.out.printf("%s: %d %d %d %d\n", Thread.currentThread().getName(), left, lessIndex,
+						greaterIndex, right);
+			}
 
 			// run sub-tasks, automatically forking for one of the two, and wait for
 			// completion of both sub-tasks
-			invokeAll(new ParallelQuickSort(values, left, storeIndex),
-					new ParallelQuickSort(values, storeIndex, right));
+			invokeAll(new ParallelQuickSort(values, carried, left, lessIndex),
+					new ParallelQuickSort(values, carried, greaterIndex, right));
 		}
 	}
 
 	/**
-	 * swaps 2 values at their indicated indeces at x and y in the values array
+	 * Sorts the interval with the standard sort, by packing each value into the
+	 * high word of a long and its carried element into the low word.
+	 */
+	private void sortCarried()
+	{
+		long[] packed = new long[right - left];
+		for (int i = left; i < right; i++)
+		{
+			packed[i - left] = ((long) values[i] << 32) | (carried[i] & 0xffffffffL);
+		}
+		Arrays.sort(packed);
+		for (int i = left; i < right; i++)
+		{
+			values[i] = (int) (packed[i - left] >> 32);
+			carried[i] = (int) packed[i - left];
+		}
+	}
+
+	/**
+	 * swaps 2 values at their indicated indeces at x and y in the values array,
+	 * and their carried elements if there are any
 	 *
-	 * @param values - int[] - array of integers
-	 * @param x      - int - one location of value to be swapped
-	 * @param y      - int - other locaion of value to be swapped
+	 * @param x - int - one location of value to be swapped
+	 * @param y - int - other locaion of value to be swapped
 	 */
-	private void swap(int[] values, int x, int y)
+	private void swap(int x, int y)
 	{
 		int temp = values[x];
 		values[x] = values[y];
 		values[y] = temp;
+		if (carried != null)
+		{
+			temp = carried[x];
+			carried[x] = carried[y];
+			carried[y] = temp;
+		}
 	}
 
 	/**
@@ -107,6 +213,67 @@ public class ParallelQuickSort extends RecursiveAction
 		ForkJoinPool.commonPool().invoke(new ParallelQuickSort(values, 0, values.length));
 	}
 
+	/**
+	 * Parallel sort an array, moving each element of carried with the value at
+	 * the same index, e.g. to find the order of the rows of a table by one of its
+	 * columns. Equal values are ordered by their carried element.
+	 *
+	 * @param values  the array to sort
+	 * @param carried array of the same length whose elements move with the values
+	 */
+	static public void sort(int[] values, int[] carried)
+	{
+		if (carried.length != values.length)
+		{
+			throw new IllegalArgumentException(
+					"carried length " + carried.length + " is not values length " + values.length);
+		}
+		ForkJoinPool.commonPool().invoke(new ParallelQuickSort(values, carried, 0, values.length));
+	}
+
+	/**
+	 * Maps a float to an int with the same ordering, so float keys can be sorted
+	 * as integers.
+	 */
+	static int sortableBits(float key)
+	{
+		int bits = Float.floatToIntBits(key);
+		return bits ^ ((bits >> 31) & 0x7fffffff);
+	}
+
+	/**
+	 * Extracts the float key that objects are sorted by, e.g. b -> b.yield for a
+	 * Bond. Negate the key to sort in descending order.
+	 *
+	 * @param <T> type of object sorted
+	 */
+	interface FloatKey<T>
+	{
+		float key(T item);
+	}
+
+	/**
+	 * Parallel sort an array of objects by a float key, e.g. bonds by yield. Each
+	 * key is extracted once into a primitive array, the keys are sorted carrying
+	 * the index of their object, and then the objects are moved to their sorted
+	 * places in one pass. Objects with equal keys keep their order.
+	 *
+	 * @param <T>   type of object sorted
+	 * @param items the array to sort
+	 * @param key   extracts the key of an object
+	 */
+	static public <T> void sort(T[] items, FloatKey<? super T> key)
+	{
+		int[] keys = new int[items.length];
+		int[] indexes = new int[items.length];
+		Arrays.parallelSetAll(keys, i -> sortableBits(key.key(items[i])));
+		Arrays.parallelSetAll(indexes, i -> i);
+		sort(keys, indexes);
+
+		T[] unsorted = items.clone();
+		Arrays.parallelSetAll(items, i -> unsorted[indexes[i]]);
+	}
+
 	/**
 	 * Sort sample array using parallel sorter.
 	 * 
@@ -114,6 +281,7 @@ public class ParallelQuickSort extends RecursiveAction
 	 */
 	public static void main(String[] args)
 	{
+		trace = true;
 		int values[] = { 0, 2, 10, 5, -6, 7, 20, 2 };
 //		int values[] = { 3, 2, 11, 2, 3, 4, 5, 6, 7, 8, 7, 6, 5, 4, 3, 2, 1, 2, 3, 4, 5, 6, 7, 8, 7, 7 };
 		ParallelQuickSort.sort(values);
@@ -0,0 +1,225 @@
+/**
+ * TestParallelQuickSort.java
+ *
+ * Unit tests for ParallelQuickSort. Arrays are sorted on a pool of 4 threads so
+ * that the parallel partitioning runs even on a single processor.
+ */
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runners.MethodSorters;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit test class for ParallelQuickSort.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TestParallelQuickSort
+{
+	/** large enough to be partitioned several times */
+	static final int SIZE = ParallelQuickSort.THRESHOLD * 16;
+
+	/** pool the arrays are sorted on */
+	static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+	/**
+	 * Sorts values with ParallelQuickSort on POOL, and checks the result against
+	 * Arrays.sort().
+	 *
+	 * @param values the array to sort
+	 */
+	static void assertSorts(int[] values)
+	{
+		int[] expected = values.clone();
+		Arrays.sort(expected);
+		POOL.invoke(new ParallelQuickSort(values, 0, values.length));
+		assertArrayEquals(expected, values);
+	}
+
+	/**
+	 * Test sorting random values.
+	 */
+	@Test
+	public void test_0010_random()
+	{
+		Random random = new Random(10);
+		int[] values = new int[SIZE];
+		for (int i = 0; i < SIZE; i++)
+		{
+			values[i] = random.nextInt();
+		}
+		assertSorts(values);
+	}
+
+	/**
+	 * Test sorting values that are already sorted.
+	 */
+	@Test
+	public void test_0020_sorted()
+	{
+		int[] values = new int[SIZE];
+		for (int i = 0; i < SIZE; i++)
+		{
+			values[i] = i;
+		}
+		assertSorts(values);
+	}
+
+	/**
+	 * Test sorting values in descending order.
+	 */
+	@Test
+	public void test_0030_reversed()
+	{
+		int[] values = new int[SIZE];
+		for (int i = 0; i < SIZE; i++)
+		{
+			values[i] = SIZE - i;
+		}
+		assertSorts(values);
+	}
+
+	/**
+	 * Test sorting values that are all the same.
+	 */
+	@Test
+	public void test_0040_allEqual()
+	{
+		int[] values = new int[SIZE];
+		Arrays.fill(values, 7);
+		assertSorts(values);
+	}
+
+	/**
+	 * Test sorting many copies of a few values.
+	 */
+	@Test
+	public void test_0050_fewUnique()
+	{
+		Random random = new Random(50);
+		int[] values = new int[SIZE];
+		for (int i = 0; i < SIZE; i++)
+		{
+			values[i] = random.nextInt(4) - 2;
+		}
+		assertSorts(values);
+	}
+
+	/**
+	 * Test sorting empty and 1 element arrays with sort().
+	 */
+	@Test
+	public void test_0060_tiny()
+	{
+		int[] empty = {};
+		ParallelQuickSort.sort(empty);
+		assertArrayEquals(new int[] {}, empty);
+
+		int[] one = { 5 };
+		ParallelQuickSort.sort(one);
+		assertArrayEquals(new int[] { 5 }, one);
+	}
+
+	/**
+	 * Test that the indexes carried with many copies of a few values end up in
+	 * the order of a stable sort.
+	 */
+	@Test
+	public void test_0070_carriedIndexes()
+	{
+		Random random = new Random(70);
+		int[] values = new int[SIZE];
+		int[] indexes = new int[SIZE];
+		long[] packed = new long[SIZE];
+		for (int i = 0; i < SIZE; i++)
+		{
+			values[i] = random.nextInt(100) - 50;
+			indexes[i] = i;
+			packed[i] = ((long) values[i] << 32) | i;
+		}
+		Arrays.sort(packed);
+		int[] expectedValues = new int[SIZE];
+		int[] expectedIndexes = new int[SIZE];
+		for (int i = 0; i < SIZE; i++)
+		{
+			expectedValues[i] = (int) (packed[i] >> 32);
+			expectedIndexes[i] = (int) packed[i];
+		}
+
+		POOL.invoke(new ParallelQuickSort(values, indexes, 0, SIZE));
+		assertArrayEquals(expectedValues, values);
+		assertArrayEquals(expectedIndexes, indexes);
+	}
+
+	/** an object sorted by its float yield */
+	record Quote(String name, float yield)
+	{
+	}
+
+	/**
+	 * Test that sorting objects by descending key gives the same order as a stable
+	 * sort with a comparator, so objects with equal keys keep their order.
+	 */
+	@Test
+	public void test_0080_objectsByKey()
+	{
+		Random random = new Random(80);
+		// few distinct yields, so there are many ties
+		Quote[] quotes = new Quote[SIZE];
+		for (int i = 0; i < SIZE; i++)
+		{
+			quotes[i] = new Quote("Q" + i, (random.nextInt(40) - 10) / 100f);
+		}
+		Quote[] expected = quotes.clone();
+		Arrays.sort(expected, (q1, q2) -> Float.compare(q2.yield(), q1.yield()));
+		ParallelQuickSort.sort(quotes, q -> -q.yield());
+		assertArrayEquals(expected, quotes);
+
+		Quote[] empty = {};
+		ParallelQuickSort.sort(empty, q -> -q.yield());
+		assertArrayEquals(new Quote[] {}, empty);
+
+		Quote acme = new Quote("ACME", 0.06f);
+		Quote[] one = { acme };
+		ParallelQuickSort.sort(one, q -> -q.yield());
+		assertSame(acme, one[0]);
+	}
+
+	/**
+	 * Main program to drive unit tests.
+	 *
+	 * @param args unused
+	 */
+	public static void main(String[] args)
+	{
+		Result result = JUnitCore.runClasses(TestParallelQuickSort.class);
+
+		System.out.println("[Unit Test Results]");
+		System.out.println();
+
+		if (result.getFailureCount() > 0)
+		{
+			System.out.println("Test failure details:");
+			for (Failure failure : result.getFailures())
+			{
+				System.out.println(failure.toString());
+			}
+			System.out.println();
+		}
+
+		int passCount = result.getRunCount() - result.getFailureCount() - result.getIgnoreCount();
+		System.out.println("Test summary:");
+		System.out.println("* Total tests = " + result.getRunCount());
+		System.out.println("* Passed tests: " + passCount);
+		System.out.println("* Failed tests = " + result.getFailureCount());
+		System.out.println("* Inactive tests = " + result.getIgnoreCount());
+	}
+}
@@ -0,0 +1,351 @@
+/**
+ * LoadTest.java
+ *
+ * This program drives Investment.invest() and ParallelQuickSort.sort() from
+ * many caller threads at once, to find the point where throughput stops
+ * growing and latency starts to climb. It reports throughput, latency
+ * percentiles, and how busy the common fork-join pool was.
+ *
+ * It is built together with the programs it drives, from the top directory
+ * (3_Greedy_Algorithm also needs JUnit 4 to compile its unit tests):
+ *
+ * javac -cp junit.jar -d out 3_Greedy_Algorithm/*.java
+ * 4_Parallel_QuickSort/ParallelQuickSort.java 5_Load_Test/LoadTest.java
+ *
+ * java -cp out LoadTest --workload both --threads 64 --size 100000 --seconds 30
+ */
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This is a wrapper class for the load test options, the synthetic inputs, the
+ * callers and the fork-join pool sampler.
+ */
+public class LoadTest
+{
+	/**
+	 * How the values of a synthetic input are laid out.
+	 */
+	enum Distribution
+	{
+		/** random values */
+		UNIFORM,
+		/** values in ascending order; bonds in descending order of yield */
+		SORTED,
+		/** the opposite order of SORTED */
+		REVERSED,
+		/** random values drawn from only 16 different ones */
+		FEW_UNIQUE
+	}
+
+	/**
+	 * Which calls the callers make.
+	 */
+	enum Workload
+	{
+		INVEST, SORT, BOTH
+	}
+
+	/** command line options and their defaults */
+	Workload workload = Workload.BOTH;
+	int threads = Runtime.getRuntime().availableProcessors();
+	boolean virtual = false;
+	int size = 100000;
+	Distribution distribution = Distribution.UNIFORM;
+	float budget = 1e6f;
+	int warmupSeconds = 5;
+	int seconds = 30;
+	long seed = 1;
+
+	/**
+	 * Creates the value of element i of n in a synthetic input, between 0 and
+	 * bound.
+	 */
+	static int value(Distribution distribution, Random random, int i, int n, int bound)
+	{
+		switch (distribution)
+		{
+		case SORTED:
+			return (int) ((long) i * bound / n);
+		case REVERSED:
+			return (int) ((long) (n - 1 - i) * bound / n);
+		case FEW_UNIQUE:
+			return random.nextInt(16) * (bound / 16);
+		default:
+			return random.nextInt(bound);
+		}
+	}
+
+	/**
+	 * Creates a synthetic array to sort.
+	 *
+	 * @return an array of size values
+	 */
+	int[] array()
+	{
+		Random random = new Random(seed);
+		int[] values = new int[size];
+		for (int i = 0; i < size; i++)
+		{
+			values[i] = value(distribution, random, i, size, Integer.MAX_VALUE);
+		}
+		return values;
+	}
+
+	/**
+	 * Creates a synthetic bond universe, with yields below 10% laid out by the
+	 * distribution.
+	 *
+	 * @return a universe of size bonds
+	 */
+	ArrayList<Investment.Bond> universe()
+	{
+		Random random = new Random(seed);
+		ArrayList<Investment.Bond> bonds = new ArrayList<Investment.Bond>(size);
+		for (int i = 0; i < size; i++)
+		{
+			float yield = 0.1f - value(distribution, random, i, size, 100000) / 1e6f;
+			bonds.add(new Investment.Bond("B" + i, 1 + random.nextInt(100), 1 + random.nextInt(100), yield));
+		}
+		return bonds;
+	}
+
+	/**
+	 * Samples the common pool while callers run. The queued counts are averaged
+	 * over the samples, and steals are counted from the last reset.
+	 */
+	static final class PoolSampler implements Runnable
+	{
+		final ForkJoinPool pool = ForkJoinPool.commonPool();
+		volatile boolean running = true;
+		long samples, submissions, tasks, active, maxSubmissions, maxTasks;
+		long startSteals = pool.getStealCount();
+
+		public void run()
+		{
+			while (running)
+			{
+				long s = pool.getQueuedSubmissionCount();
+				long t = pool.getQueuedTaskCount();
+				synchronized (this)
+				{
+					samples++;
+					submissions += s;
+					tasks += t;
+					active += pool.getActiveThreadCount();
+					maxSubmissions = Math.max(maxSubmissions, s);
+					maxTasks = Math.max(maxTasks, t);
+				}
+				try
+				{
+					Thread.sleep(10);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Forgets the samples taken during warm up.
+		 */
+		synchronized void reset()
+		{
+			samples = submissions = tasks = active = maxSubmissions = maxTasks = 0;
+			startSteals = pool.getStealCount();
+		}
+
+		synchronized String report()
+		{
+			long n = Math.max(1, samples);
+			return String.format(
+					"pool parallelism=%d active avg=%.1f queued submissions avg=%.1f max=%d"
+							+ " queued tasks avg=%.1f max=%d steals=%d",
+					pool.getParallelism(), (double) active / n, (double) submissions / n, maxSubmissions,
+					(double) tasks / n, maxTasks, pool.getStealCount() - startSteals);
+		}
+	}
+
+	/**
+	 * Latency and number of calls of one kind.
+	 */
+	static final class Calls
+	{
+		final String name;
+		final InvestmentMetrics.Histogram latency = new InvestmentMetrics.Histogram();
+		final LongAdder count = new LongAdder();
+
+		Calls(String name)
+		{
+			this.name = name;
+		}
+
+		void record(long startNanos)
+		{
+			latency.record(System.nanoTime() - startNanos);
+			count.increment();
+		}
+
+		void reset()
+		{
+			latency.reset();
+			count.reset();
+		}
+
+		String report(double seconds)
+		{
+			return String.format("%-6s calls=%d throughput=%.1f/s latency(ms) p50=%.3f p99=%.3f p999=%.3f max=%.3f",
+					name, count.sum(), count.sum() / seconds, latency.percentile(0.50) / 1e6,
+					latency.percentile(0.99) / 1e6, latency.percentile(0.999) / 1e6, latency.max() / 1e6);
+		}
+	}
+
+	/**
+	 * Creates an executor that runs each caller on its own thread.
+	 *
+	 * @throws UnsupportedOperationException if virtual threads are asked for and
+	 *                                       this Java has none
+	 */
+	ExecutorService executor()
+	{
+		if (!virtual)
+		{
+			return Executors.newFixedThreadPool(threads);
+		}
+		try
+		{
+			// found by name, so this still compiles on Java versions without them
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new UnsupportedOperationException("virtual threads need Java 21 or later", e);
+		}
+	}
+
+	/**
+	 * Runs the callers for the warm up and then for the measured time, and prints
+	 * the results.
+	 */
+	void run() throws InterruptedException
+	{
+		final ArrayList<Investment.Bond> bonds = universe();
+		final int[] template = array();
+		final Calls invests = new Calls("invest");
+		final Calls sorts = new Calls("sort");
+		final PoolSampler sampler = new PoolSampler();
+		Thread samplerThread = new Thread(sampler, "pool-sampler");
+		samplerThread.setDaemon(true);
+		samplerThread.start();
+
+		final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds + seconds);
+		ExecutorService executor = executor();
+		for (int t = 0; t < threads; t++)
+		{
+			final int caller = t;
+			executor.execute(() -> {
+				int[] values = new int[template.length];
+				// with both workloads, half the callers sort and half invest
+				boolean sort = workload == Workload.SORT || (workload == Workload.BOTH && caller % 2 == 1);
+				while (System.nanoTime() < end)
+				{
+					if (sort)
+					{
+						System.arraycopy(template, 0, values, 0, values.length);
+						long start = System.nanoTime();
+						ParallelQuickSort.sort(values);
+						sorts.record(start);
+					}
+					else
+					{
+						long start = System.nanoTime();
+						Investment.invest(budget, bonds);
+						invests.record(start);
+					}
+				}
+			});
+		}
+
+		TimeUnit.SECONDS.sleep(warmupSeconds);
+		invests.reset();
+		sorts.reset();
+		sampler.reset();
+		InvestmentMetrics.reset();
+		long start = System.nanoTime();
+
+		executor.shutdown();
+		executor.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		sampler.running = false;
+
+		System.out.printf("%s callers=%d %s size=%d distribution=%s measured=%.1fs%n", workload, threads,
+				virtual ? "virtual" : "platform", size, distribution, elapsed);
+		if (workload != Workload.SORT)
+		{
+			System.out.println(invests.report(elapsed));
+		}
+		if (workload != Workload.INVEST)
+		{
+			System.out.println(sorts.report(elapsed));
+		}
+		System.out.println(sampler.report());
+		if (workload != Workload.SORT)
+		{
+			System.out.println(InvestmentMetrics.report());
+		}
+	}
+
+	/**
+	 * Parses the options and runs the load test.
+	 *
+	 * @param args --workload invest|sort|both, --threads N, --virtual, --size N,
+	 *             --distribution uniform|sorted|reversed|few_unique, --budget
+	 *             dollars, --warmup seconds, --seconds seconds, --seed N
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		LoadTest test = new LoadTest();
+		for (int i = 0; i < args.length; i++)
+		{
+			switch (args[i])
+			{
+			case "--workload":
+				test.workload = Workload.valueOf(args[++i].toUpperCase());
+				break;
+			case "--threads":
+				test.threads = Integer.parseInt(args[++i]);
+				break;
+			case "--virtual":
+				test.virtual = true;
+				break;
+			case "--size":
+				test.size = Integer.parseInt(args[++i]);
+				break;
+			case "--distribution":
+				test.distribution = Distribution.valueOf(args[++i].toUpperCase());
+				break;
+			case "--budget":
+				test.budget = Float.parseFloat(args[++i]);
+				break;
+			case "--warmup":
+				test.warmupSeconds = Integer.parseInt(args[++i]);
+				break;
+			case "--seconds":
+				test.seconds = Integer.parseInt(args[++i]);
+				break;
+			case "--seed":
+				test.seed = Long.parseLong(args[++i]);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option: " + args[i]);
+			}
+		}
+		test.run();
+	}
+}